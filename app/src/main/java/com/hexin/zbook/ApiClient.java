@@ -3,65 +3,49 @@ package com.hexin.zbook;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-import okhttp3.OkHttpClient;
-import okhttp3.logging.HttpLoggingInterceptor;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
-import com.hexin.zbook.BuildConfig;
 
 public class ApiClient {
 
     private static Retrofit retrofit = null;
+    private static String retrofitUrl = null;
     private static Gson customGson = null;
 
     private static void buildGson() {
         if (customGson == null) {
             GsonBuilder gsonBuilder = new GsonBuilder();
-            gsonBuilder.registerTypeAdapter(Item.class, new ItemDeserializer());
+            // Items are streamed with JsonReader, a 40k item library is too big to build a tree per item.
+            gsonBuilder.registerTypeAdapterFactory(new ItemAdapterFactory());
             gsonBuilder.registerTypeAdapter(Collection.class, new CollectionDeserializer());
             customGson = gsonBuilder.create();
         }
     }
 
-    public static Retrofit getClient() {
-        // The client is now expected to be initialized by a call to resetClient
-        // before the first sync. Returning null is safer than using a hardcoded URL.
+    /**
+     * Returns the Retrofit instance for {@code userUrl}, building it only when the
+     * URL differs from the last one. The API key is sent per request, so a new key
+     * needs no new client.
+     */
+    public static synchronized Retrofit getClient(String userUrl) {
+        if (retrofit == null || !userUrl.equals(retrofitUrl)) {
+            retrofit = newRetrofit(userUrl);
+            retrofitUrl = userUrl;
+        }
         return retrofit;
     }
 
-    public static void resetClient(String userUrl) {
-        buildGson();
-
-        HttpLoggingInterceptor logging = new HttpLoggingInterceptor();
-        logging.setLevel(HttpLoggingInterceptor.Level.BODY);
-
-        OkHttpClient.Builder httpClient = new OkHttpClient.Builder();
-        if (BuildConfig.DEBUG) {
-            httpClient.addInterceptor(logging);
-        }
-
-        retrofit = new Retrofit.Builder()
-                .baseUrl(userUrl)
-                .addConverterFactory(GsonConverterFactory.create(customGson))
-                .client(httpClient.build())
-                .build();
+    /** A Retrofit for settings the user has not saved yet; it shares the app's connections. */
+    public static Retrofit getTestClient(String userUrl) {
+        return newRetrofit(userUrl);
     }
 
-    public static Retrofit getTestClient(String userUrl) {
+    private static synchronized Retrofit newRetrofit(String userUrl) {
         buildGson();
-        
-        HttpLoggingInterceptor logging = new HttpLoggingInterceptor();
-        logging.setLevel(HttpLoggingInterceptor.Level.BODY);
-
-        OkHttpClient.Builder httpClient = new OkHttpClient.Builder();
-        if (BuildConfig.DEBUG) {
-            httpClient.addInterceptor(logging);
-        }
-        
         return new Retrofit.Builder()
                 .baseUrl(userUrl)
                 .addConverterFactory(GsonConverterFactory.create(customGson))
-                .client(httpClient.build())
+                .client(HttpClients.api())
                 .build();
     }
 }
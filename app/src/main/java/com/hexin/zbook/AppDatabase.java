@@ -1,27 +1,248 @@
 package com.hexin.zbook;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
-@Database(exportSchema = false, entities = {Collection.class, Item.class}, version = 8) // Increment version number
+@Database(exportSchema = false, entities = {Collection.class, Item.class, ItemCollection.class, ItemFts.class, SyncCheckpoint.class, QueuedDownload.class, WebDavFile.class}, version = 17) // Increment version number
 public abstract class AppDatabase extends RoomDatabase {
 
+    // Stay well below SQLite's 999 bound-parameter limit for "IN (:keys)" queries.
+    static final int MAX_BIND_ARGS = 500;
+
     public abstract CollectionDao collectionDao();
 
     public abstract ItemDao itemDao();
 
+    public abstract SyncCheckpointDao syncCheckpointDao();
+
+    public abstract DownloadQueueDao downloadQueueDao();
+
+    public abstract WebDavIndexDao webDavIndexDao();
+
     private static volatile AppDatabase INSTANCE;
 
+    /**
+     * Adds the item_collections join table and the indices used for navigation,
+     * and fills the join table from the comma-joined items.collectionKey column.
+     */
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `item_collections` (`itemKey` TEXT NOT NULL, `collectionKey` TEXT NOT NULL, PRIMARY KEY(`itemKey`, `collectionKey`))");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_item_collections_collectionKey` ON `item_collections` (`collectionKey`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_parentItem` ON `items` (`parentItem`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_itemType` ON `items` (`itemType`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_lastOpenedTimestamp` ON `items` (`lastOpenedTimestamp`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_collections_parentCollection` ON `collections` (`parentCollection`)");
+
+            // Split "KEY1,KEY2,..." into one row per collection.
+            db.execSQL("WITH RECURSIVE split(itemKey, head, rest) AS ("
+                    + " SELECT `key`, '', collectionKey || ',' FROM items WHERE collectionKey IS NOT NULL AND collectionKey != ''"
+                    + " UNION ALL"
+                    + " SELECT itemKey, substr(rest, 1, instr(rest, ',') - 1), substr(rest, instr(rest, ',') + 1) FROM split WHERE rest != ''"
+                    + ") INSERT OR IGNORE INTO item_collections (itemKey, collectionKey)"
+                    + " SELECT itemKey, head FROM split WHERE head != ''");
+        }
+    };
+
+    /**
+     * Adds the precomputed sort-key columns with their indices and fills them for
+     * the items already stored. The keys are computed in Java so that they match
+     * what {@link SortKeys} produces for newly synced items.
+     */
+    static final Migration MIGRATION_9_10 = new Migration(9, 10) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `items` ADD COLUMN `sortTitle` TEXT");
+            db.execSQL("ALTER TABLE `items` ADD COLUMN `sortCreator` TEXT");
+            db.execSQL("ALTER TABLE `items` ADD COLUMN `sortYear` INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE `items` ADD COLUMN `dateAddedEpoch` INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_sortTitle_key` ON `items` (`sortTitle`, `key`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_sortCreator_key` ON `items` (`sortCreator`, `key`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_sortYear_publicationDate_key` ON `items` (`sortYear`, `publicationDate`, `key`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_dateAddedEpoch_key` ON `items` (`dateAddedEpoch`, `key`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_filesize_key` ON `items` (`filesize`, `key`)");
+
+            Item item = new Item();
+            ContentValues values = new ContentValues();
+            try (Cursor cursor = db.query("SELECT `key`, title, creators, publicationDate, dateAdded FROM items")) {
+                while (cursor.moveToNext()) {
+                    item.title = cursor.getString(1);
+                    item.creators = cursor.getString(2);
+                    item.publicationDate = cursor.getString(3);
+                    item.dateAdded = cursor.getString(4);
+                    item.sortCreator = null;
+                    SortKeys.apply(item);
+
+                    values.clear();
+                    values.put("sortTitle", item.sortTitle);
+                    values.put("sortCreator", item.sortCreator);
+                    values.put("sortYear", item.sortYear);
+                    values.put("dateAddedEpoch", item.dateAddedEpoch);
+                    db.update("items", SQLiteDatabase.CONFLICT_NONE, values, "`key` = ?", new Object[]{cursor.getString(0)});
+                }
+            }
+        }
+    };
+
+    /**
+     * Creates the items_fts search index and fills it from the stored items.
+     */
+    static final Migration MIGRATION_10_11 = new Migration(10, 11) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `items_fts` USING FTS4(`itemKey` TEXT NOT NULL, `title` TEXT, `creators` TEXT, `filename` TEXT, `publicationDate` TEXT, `pinyin` TEXT, notindexed=`itemKey`)");
+
+            Item item = new Item();
+            ContentValues values = new ContentValues();
+            try (Cursor cursor = db.query("SELECT `key`, title, creators, filename, publicationDate FROM items")) {
+                while (cursor.moveToNext()) {
+                    item.key = cursor.getString(0);
+                    item.title = cursor.getString(1);
+                    item.creators = cursor.getString(2);
+                    item.filename = cursor.getString(3);
+                    item.publicationDate = cursor.getString(4);
+                    ItemFts row = ItemFts.fromItem(item);
+
+                    values.clear();
+                    values.put("itemKey", row.itemKey);
+                    values.put("title", row.title);
+                    values.put("creators", row.creators);
+                    values.put("filename", row.filename);
+                    values.put("publicationDate", row.publicationDate);
+                    values.put("pinyin", row.pinyin);
+                    db.insert("items_fts", SQLiteDatabase.CONFLICT_NONE, values);
+                }
+            }
+        }
+    };
+
+    /**
+     * Stores the pinyin of every item and rebuilds items_fts so its pinyin column
+     * includes the full syllables.
+     */
+    static final Migration MIGRATION_11_12 = new Migration(11, 12) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `items` ADD COLUMN `titlePinyin` TEXT");
+            db.execSQL("ALTER TABLE `items` ADD COLUMN `titlePinyinFull` TEXT");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_titlePinyin` ON `items` (`titlePinyin`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_items_titlePinyinFull` ON `items` (`titlePinyinFull`)");
+            db.execSQL("DELETE FROM `items_fts`");
+
+            Item item = new Item();
+            ContentValues values = new ContentValues();
+            try (Cursor cursor = db.query("SELECT `key`, itemType, title, filename, creators, publicationDate FROM items")) {
+                while (cursor.moveToNext()) {
+                    item.key = cursor.getString(0);
+                    item.itemType = cursor.getString(1);
+                    item.title = cursor.getString(2);
+                    item.filename = cursor.getString(3);
+                    item.creators = cursor.getString(4);
+                    item.publicationDate = cursor.getString(5);
+                    PinyinUtils.apply(item);
+
+                    values.clear();
+                    values.put("titlePinyin", item.titlePinyin);
+                    values.put("titlePinyinFull", item.titlePinyinFull);
+                    db.update("items", SQLiteDatabase.CONFLICT_NONE, values, "`key` = ?", new Object[]{item.key});
+
+                    ItemFts row = ItemFts.fromItem(item);
+                    values.clear();
+                    values.put("itemKey", row.itemKey);
+                    values.put("title", row.title);
+                    values.put("creators", row.creators);
+                    values.put("filename", row.filename);
+                    values.put("publicationDate", row.publicationDate);
+                    values.put("pinyin", row.pinyin);
+                    db.insert("items_fts", SQLiteDatabase.CONFLICT_NONE, values);
+                }
+            }
+        }
+    };
+
+    /**
+     * Adds the sync_checkpoint table that lets an interrupted first sync resume.
+     */
+    static final Migration MIGRATION_12_13 = new Migration(12, 13) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `sync_checkpoint` (`objectType` TEXT NOT NULL, `targetVersion` INTEGER NOT NULL, `nextStart` INTEGER NOT NULL, `complete` INTEGER NOT NULL, PRIMARY KEY(`objectType`))");
+        }
+    };
+
+    /**
+     * Adds the download_queue table that keeps queued downloads across process death.
+     */
+    static final Migration MIGRATION_13_14 = new Migration(13, 14) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `download_queue` (`itemKey` TEXT NOT NULL, `lane` INTEGER NOT NULL, `enqueuedAt` INTEGER NOT NULL, PRIMARY KEY(`itemKey`))");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_download_queue_enqueuedAt` ON `download_queue` (`enqueuedAt`)");
+        }
+    };
+
+    /**
+     * Adds the webdav_index table with the sizes listed by one PROPFIND of the storage folder.
+     */
+    static final Migration MIGRATION_14_15 = new Migration(14, 15) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `webdav_index` (`itemKey` TEXT NOT NULL, `size` INTEGER NOT NULL, `modified` INTEGER NOT NULL, PRIMARY KEY(`itemKey`))");
+        }
+    };
+
+    /**
+     * Adds the server checksum and mtime of attachments and the checksum of the local
+     * copy. Stored attachments are marked as version 0; the next sync sees them and
+     * reconciles, which fetches them again with their checksums.
+     */
+    static final Migration MIGRATION_15_16 = new Migration(15, 16) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `items` ADD COLUMN `md5` TEXT");
+            db.execSQL("ALTER TABLE `items` ADD COLUMN `mtime` INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE `items` ADD COLUMN `localMd5` TEXT");
+            db.execSQL("UPDATE items SET version = 0 WHERE itemType = 'attachment'");
+        }
+    };
+
+    /**
+     * Re-keys items_fts by docid = items.rowid, so a changed or deleted item's search
+     * row is found by docid instead of by a scan of the non-indexed itemKey column.
+     */
+    static final Migration MIGRATION_16_17 = new Migration(16, 17) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TEMP TABLE `items_fts_rekeyed` AS SELECT items.rowid AS docid, f.itemKey, f.title, f.creators, f.filename, f.publicationDate, f.pinyin"
+                    + " FROM `items_fts` f INNER JOIN items ON items.`key` = f.itemKey GROUP BY items.rowid");
+            db.execSQL("DELETE FROM `items_fts`");
+            db.execSQL("INSERT INTO `items_fts` (docid, itemKey, title, creators, filename, publicationDate, pinyin)"
+                    + " SELECT docid, itemKey, title, creators, filename, publicationDate, pinyin FROM `items_fts_rekeyed`");
+            db.execSQL("DROP TABLE `items_fts_rekeyed`");
+        }
+    };
+
     static AppDatabase getDatabase(final Context context) {
         if (INSTANCE == null) {
             synchronized (AppDatabase.class) {
                 if (INSTANCE == null) {
+                    // Pinyin is only computed on the way into the database (sync and migrations).
+                    PinyinTable.setDirectory(context.getApplicationContext().getFilesDir());
                     INSTANCE = Room.databaseBuilder(context.getApplicationContext(),
                                     AppDatabase.class, "zbook_database")
-                            .fallbackToDestructiveMigration() // Add destructive migration strategy
+                            .addMigrations(MIGRATION_8_9, MIGRATION_9_10, MIGRATION_10_11, MIGRATION_11_12, MIGRATION_12_13, MIGRATION_13_14, MIGRATION_14_15, MIGRATION_15_16, MIGRATION_16_17)
+                            // Databases older than version 8 are only a cache of the server, rebuild them.
+                            .fallbackToDestructiveMigrationFrom(1, 2, 3, 4, 5, 6, 7)
                             .build();
                 }
             }
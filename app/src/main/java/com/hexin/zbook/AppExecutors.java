@@ -0,0 +1,102 @@
+package com.hexin.zbook;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * App-wide thread pools. Sync, database reads and database writes each get their
+ * own pool, so loading a collection never waits behind a running sync the way it
+ * did on AsyncTask's shared serial executor.
+ */
+public class AppExecutors {
+
+    private static final int NETWORK_THREADS = 2;
+    private static final int DISK_READ_THREADS = 3;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile AppExecutors INSTANCE;
+
+    private final ExecutorService mNetworkIO;
+    private final ExecutorService mDiskRead;
+    private final ExecutorService mDiskWrite;
+    private final Executor mMainThread;
+
+    private AppExecutors() {
+        mNetworkIO = newPool("zbook-network", NETWORK_THREADS);
+        mDiskRead = newPool("zbook-disk-read", DISK_READ_THREADS);
+        mDiskWrite = newPool("zbook-disk-write", 1);
+        mMainThread = new MainThreadExecutor();
+    }
+
+    public static AppExecutors getInstance() {
+        if (INSTANCE == null) {
+            synchronized (AppExecutors.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new AppExecutors();
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /** Long-running network work such as a library sync. */
+    public ExecutorService networkIO() {
+        return mNetworkIO;
+    }
+
+    /** Short database queries that the UI is waiting on. */
+    public ExecutorService diskRead() {
+        return mDiskRead;
+    }
+
+    /** Database writes, one at a time. */
+    public ExecutorService diskWrite() {
+        return mDiskWrite;
+    }
+
+    public Executor mainThread() {
+        return mMainThread;
+    }
+
+    private static ExecutorService newPool(String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mCount.getAndIncrement());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+
+    private static class MainThreadExecutor implements Executor {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mHandler.post(command);
+        }
+    }
+}
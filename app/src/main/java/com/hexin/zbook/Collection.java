@@ -2,10 +2,11 @@ package com.hexin.zbook;
 
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 import androidx.annotation.NonNull;
 
-@Entity(tableName = "collections")
+@Entity(tableName = "collections", indices = {@Index("parentCollection")})
 public class Collection {
 
     @PrimaryKey
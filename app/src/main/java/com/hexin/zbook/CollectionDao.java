@@ -5,6 +5,7 @@ import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
 
 import java.util.List;
 
@@ -20,6 +21,9 @@ public interface CollectionDao {
     @Query("SELECT * FROM collections WHERE parentCollection = :parentKey OR (parentCollection IS NULL AND :parentKey IS NULL)")
     List<Collection> getSubCollectionsSync(String parentKey);
 
+    @Query("SELECT `key`, version FROM collections")
+    List<KeyVersion> getAllVersions();
+
     @Query("SELECT MAX(version) FROM collections")
     int getLatestVersion();
 
@@ -29,4 +33,12 @@ public interface CollectionDao {
     @Query("DELETE FROM collections WHERE key IN (:keys)")
     void deleteByKeys(List<String> keys);
 
+    @Transaction
+    default void applyPage(List<Collection> upserts, List<String> deletes) {
+        if (!upserts.isEmpty()) insertAll(upserts);
+        for (List<String> chunk : Utils.partition(deletes, AppDatabase.MAX_BIND_ARGS)) {
+            deleteByKeys(chunk);
+        }
+    }
+
 }
@@ -17,14 +17,11 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.SearchView;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.content.FileProvider;
-import androidx.lifecycle.LiveData;
-import androidx.lifecycle.Observer;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.List;
 
 public class DownloadActivity extends AppCompatActivity implements DownloadAdapter.OnActionListener, DownloadAdapter.OnItemClickListener {
@@ -40,9 +37,6 @@ public class DownloadActivity extends AppCompatActivity implements DownloadAdapt
 
     private String mCurrentSearchQuery = ""; // <--- 新增：用于保存当前的搜索词
 
-    private final List<LiveData<DownloadManager.DownloadProgress>> mObservedProgresses = new ArrayList<>();
-    private final Observer<DownloadManager.DownloadProgress> mProgressObserver = progress -> recalculateTotalSize();
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -74,27 +68,33 @@ public class DownloadActivity extends AppCompatActivity implements DownloadAdapt
 
     private void observeViewModel() {
         mViewModel.getAllAttachments().observe(this, attachments -> {
-            for (LiveData<DownloadManager.DownloadProgress> liveData : mObservedProgresses) {
-                liveData.removeObserver(mProgressObserver);
-            }
-            mObservedProgresses.clear();
-
             mAdapter.setAttachments(attachments);
 
             // 3. 如果存在搜索词，则立即对新列表应用过滤
-            if (mCurrentSearchQuery != null && !mCurrentSearchQuery.isEmpty()) {
-                mAdapter.filter(mCurrentSearchQuery);
-            }
+            mAdapter.filter(mViewModel.getSearchMatches().getValue());
+            recalculateTotalSize();
+        });
 
+        // One batched update for all attachments instead of an observer per attachment.
+        mDownloadManager.getProgressUpdates().observe(this, changed -> recalculateTotalSize());
 
-            if (attachments != null) {
-                for (Item attachment : attachments) {
-                    LiveData<DownloadManager.DownloadProgress> liveData = mDownloadManager.getDownloadProgress(attachment.key, attachment.filename);
-                    liveData.observe(this, mProgressObserver);
-                    mObservedProgresses.add(liveData);
-                }
+        mViewModel.getSearchMatches().observe(this, matchingKeys -> mAdapter.filter(matchingKeys));
+
+        mViewModel.getRefreshResult().observe(this, event -> {
+            String message = event.getContentIfNotHandled();
+            if (message != null) {
+                Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+            }
+        });
+
+        mDownloadManager.getTransferStats().observe(this, stats -> {
+            if (getSupportActionBar() == null) return;
+            if (stats == null || stats.active == 0) {
+                getSupportActionBar().setSubtitle(null);
+            } else {
+                getSupportActionBar().setSubtitle(String.format("%d / %d parallel · %s/s",
+                        stats.active, stats.parallelism, Formatter.formatShortFileSize(this, stats.bytesPerSecond)));
             }
-            recalculateTotalSize();
         });
 
         mDownloadManager.getGlobalDownloadProgress().observe(this, globalProgress -> {
@@ -128,7 +128,7 @@ public class DownloadActivity extends AppCompatActivity implements DownloadAdapt
         if (currentAttachments != null) {
             for (Item attachment : currentAttachments) {
 
-                DownloadManager.DownloadProgress progress = mDownloadManager.getDownloadProgress(attachment.key, attachment.filename).getValue();
+                DownloadManager.DownloadProgress progress = mDownloadManager.getDownloadProgress(attachment.key, attachment.filename);
                 if (progress != null && progress.state == DownloadManager.DownloadState.DOWNLOADED) {
                     totalSize += progress.totalBytes;
 
@@ -164,9 +164,7 @@ public class DownloadActivity extends AppCompatActivity implements DownloadAdapt
             public boolean onMenuItemActionCollapse(MenuItem item) {
                 // 当用户关闭 SearchView 时，清空搜索词并刷新列表
                 mCurrentSearchQuery = "";
-                if (mAdapter != null) {
-                    mAdapter.filter(mCurrentSearchQuery);
-                }
+                mViewModel.setSearchQuery(mCurrentSearchQuery);
                 return true;
             }
         });
@@ -187,13 +185,11 @@ public class DownloadActivity extends AppCompatActivity implements DownloadAdapt
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                // 当搜索框的文本发生任何变化时，都调用 Adapter 的 filter 方法
+                // 当搜索框的文本发生任何变化时，交给 ViewModel 查询全文索引，结果在 observer 中过滤列表
 
                 mCurrentSearchQuery = newText; // <--- 保存搜索词
 
-                if (mAdapter != null) {
-                    mAdapter.filter(newText);
-                }
+                mViewModel.setSearchQuery(newText);
                 return true;
             }
         });
@@ -220,6 +216,11 @@ public class DownloadActivity extends AppCompatActivity implements DownloadAdapt
             }
             return true;
         }
+        if (item.getItemId() == R.id.action_refresh_stale_downloads) {
+            List<Item> attachments = mAdapter.getAttachments();
+            if (attachments != null) mViewModel.refreshStaleAttachments(attachments);
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
@@ -245,7 +246,7 @@ public class DownloadActivity extends AppCompatActivity implements DownloadAdapt
 
     @Override
     public void onItemClick(Item item) {
-        DownloadManager.DownloadProgress progress = mDownloadManager.getDownloadProgress(item.key, item.filename).getValue();
+        DownloadManager.DownloadProgress progress = mDownloadManager.getDownloadProgress(item.key, item.filename);
         // 只有当文件状态为“已下载”时，才执行打开操作
         if (progress != null && progress.state == DownloadManager.DownloadState.DOWNLOADED) {
             openFile(item);
@@ -255,9 +256,13 @@ public class DownloadActivity extends AppCompatActivity implements DownloadAdapt
             if (progress == null || (progress.state != DownloadManager.DownloadState.DOWNLOADING && progress.state != DownloadManager.DownloadState.QUEUED)) {
                 mDownloadManager.startDownload(item, false);
                 Toast.makeText(this, "Starting download...", Toast.LENGTH_SHORT).show(); // 给予用户反馈
+            } else if (progress.state == DownloadManager.DownloadState.QUEUED) {
+                // 排队中的条目提到队首
+                mDownloadManager.startDownload(item, false);
+                Toast.makeText(this, "Moved to the front of the queue.", Toast.LENGTH_SHORT).show();
             } else {
-                // 如果已经在下载或排队，可以给个提示
-                Toast.makeText(this, "Already in download queue.", Toast.LENGTH_SHORT).show();
+                // 如果已经在下载，可以给个提示
+                Toast.makeText(this, "Already downloading.", Toast.LENGTH_SHORT).show();
             }
         }
     }
@@ -13,19 +13,54 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.LifecycleOwner;
-import androidx.lifecycle.LiveData;
-import androidx.lifecycle.Observer;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 public class DownloadAdapter extends RecyclerView.Adapter<DownloadAdapter.ViewHolder> {
 
+    private static final Object PAYLOAD_ATTACHMENT = new Object();
+    private static final Object PAYLOAD_PROGRESS = new Object();
+
+    private static final DiffUtil.ItemCallback<Item> DIFF_CALLBACK = new DiffUtil.ItemCallback<Item>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Item oldItem, @NonNull Item newItem) {
+            return oldItem.key.equals(newItem.key);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Item oldItem, @NonNull Item newItem) {
+            // lastOpenedTimestamp is not shown in this list.
+            return oldItem.version == newItem.version
+                    && oldItem.filesize == newItem.filesize
+                    && Objects.equals(oldItem.filename, newItem.filename);
+        }
+
+        @Override
+        public Object getChangePayload(@NonNull Item oldItem, @NonNull Item newItem) {
+            // A new filename or version changes the download state, which needs a full bind.
+            if (Objects.equals(oldItem.filename, newItem.filename) && oldItem.version == newItem.version) {
+                return PAYLOAD_ATTACHMENT;
+            }
+            return null;
+        }
+    };
+
+    private final AsyncListDiffer<Item> mDiffer = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    // Position of each key in the current list, so a progress batch costs its own size, not the list's.
+    private Map<String, Integer> mPositions = new HashMap<>();
+    // Stable ids are handed out per item key, so they never collide.
+    private final Map<String, Long> mStableIds = new HashMap<>();
     private List<Item> mAttachments = new ArrayList<>();
 
     private List<Item> mAllAttachments = new ArrayList<>(); // <--- 新增
-    private final LifecycleOwner mLifecycleOwner;
     private final DownloadManager mDownloadManager;
     private OnActionListener mListener;
 
@@ -33,20 +68,6 @@ public class DownloadAdapter extends RecyclerView.Adapter<DownloadAdapter.ViewHo
         void onActionClick(Item item, DownloadManager.DownloadState currentState);
     }
 
-    private void processPinyinForAttachments(List<Item> attachments) {
-        if (attachments == null) {
-            return;
-        }
-        for (Item item : attachments) {
-            if (item.filename != null) {
-                // 我们复用之前在 Item.java 中添加的 transient 字段 titlePinyin,
-                // 来存储 filename 的拼音首字母，以用于搜索过滤。
-                item.titlePinyin = PinyinUtils.getFirstSpell(item.filename);
-            }
-        }
-    }
-
-
     public interface OnItemClickListener {
         void onItemClick(Item item);
     }
@@ -59,9 +80,24 @@ public class DownloadAdapter extends RecyclerView.Adapter<DownloadAdapter.ViewHo
 
 
     public DownloadAdapter(LifecycleOwner lifecycleOwner, DownloadManager downloadManager, OnActionListener listener) {
-        mLifecycleOwner = lifecycleOwner;
         mDownloadManager = downloadManager;
         mListener = listener;
+        setHasStableIds(true);
+        mDiffer.addListListener((previous, current) -> {
+            Map<String, Integer> positions = new HashMap<>(current.size() * 2);
+            for (int i = 0; i < current.size(); i++) positions.put(current.get(i).key, i);
+            mPositions = positions;
+        });
+        downloadManager.getProgressUpdates().observe(lifecycleOwner, this::onProgressUpdates);
+    }
+
+    /** Redraws the progress of the rows in a batch, leaving the rest of the row alone. */
+    private void onProgressUpdates(Map<String, DownloadManager.DownloadProgress> changed) {
+        if (changed == null) return;
+        for (String key : changed.keySet()) {
+            Integer position = mPositions.get(key);
+            if (position != null) notifyItemChanged(position, PAYLOAD_PROGRESS);
+        }
     }
 
     @NonNull
@@ -74,28 +110,44 @@ public class DownloadAdapter extends RecyclerView.Adapter<DownloadAdapter.ViewHo
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        Item attachment = mAttachments.get(position);
-        holder.bind(attachment, mDownloadManager, mLifecycleOwner, mListener, mItemClickListener);
+        Item attachment = mDiffer.getCurrentList().get(position);
+        holder.bind(attachment, mDownloadManager, mListener, mItemClickListener);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+        } else if (payloads.contains(PAYLOAD_ATTACHMENT)) {
+            holder.rebindAttachment(mDiffer.getCurrentList().get(position));
+        } else if (payloads.contains(PAYLOAD_PROGRESS)) {
+            holder.bindProgress();
+        } else {
+            onBindViewHolder(holder, position);
+        }
     }
 
     @Override
-    public void onViewRecycled(@NonNull ViewHolder holder) {
-        super.onViewRecycled(holder);
-        holder.cleanup();
+    public long getItemId(int position) {
+        String key = mDiffer.getCurrentList().get(position).key;
+        Long id = mStableIds.get(key);
+        if (id == null) {
+            id = (long) mStableIds.size();
+            mStableIds.put(key, id);
+        }
+        return id;
     }
 
     @Override
     public int getItemCount() {
-        return mAttachments.size();
+        return mDiffer.getCurrentList().size();
     }
 
     public void setAttachments(List<Item> attachments) {
         List<Item> processedAttachments = new ArrayList<>(attachments != null ? attachments : new ArrayList<>());
-        processPinyinForAttachments(processedAttachments);
         mAllAttachments = new ArrayList<>(processedAttachments);
         mAttachments = new ArrayList<>(processedAttachments);
-
-        notifyDataSetChanged();
+        mDiffer.submitList(mAttachments);
     }
 
     public List<Item> getAttachments() {
@@ -111,8 +163,10 @@ public class DownloadAdapter extends RecyclerView.Adapter<DownloadAdapter.ViewHo
         final ColorStateList defaultFileNameColor;
         final ColorStateList defaultProgressColor;
 
-        private LiveData<DownloadManager.DownloadProgress> progressLiveData;
-        private Observer<DownloadManager.DownloadProgress> progressObserver;
+        private DownloadManager mDownloadManager;
+        private OnActionListener mListener;
+        // The bound row, so progress updates and partial binds can redraw it in place.
+        private Item mAttachment;
 
         public ViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -128,8 +182,10 @@ public class DownloadAdapter extends RecyclerView.Adapter<DownloadAdapter.ViewHo
 
 
 
-        void bind(Item attachment, DownloadManager downloadManager, LifecycleOwner lifecycleOwner, OnActionListener listener, OnItemClickListener itemClickListener) {
-            cleanup();
+        void bind(Item attachment, DownloadManager downloadManager, OnActionListener listener, OnItemClickListener itemClickListener) {
+            mAttachment = attachment;
+            mDownloadManager = downloadManager;
+            mListener = listener;
 
             fileName.setText(attachment.filename != null ? attachment.filename : "(No Filename)");
 
@@ -144,102 +200,101 @@ public class DownloadAdapter extends RecyclerView.Adapter<DownloadAdapter.ViewHo
 
             itemView.setOnClickListener(v -> {
                 if (itemClickListener != null) {
-                    itemClickListener.onItemClick(attachment);
+                    itemClickListener.onItemClick(mAttachment);
                 }
             });
 
-            progressObserver = progress -> {
-                if (progress == null) return;
+            bindProgress();
+        }
 
-                if (progress.state == DownloadManager.DownloadState.DOWNLOADED) {
-                    fileName.setTextColor(defaultFileNameColor); // Green
-                } else {
-                    fileName.setTextColor(defaultFileNameColor);
-                }
+        /** Points the row at a newer copy of the same attachment. */
+        void rebindAttachment(Item attachment) {
+            mAttachment = attachment;
+            bindProgress();
+        }
 
-                boolean isDownloading = progress.state == DownloadManager.DownloadState.DOWNLOADING;
-                boolean isSkipped = progress.state == DownloadManager.DownloadState.SKIPPED;
-                boolean isFailed = progress.state == DownloadManager.DownloadState.FAILED;
-
-                progressBar.setVisibility(isDownloading ? View.VISIBLE : View.GONE);
-                progressText.setVisibility(View.VISIBLE);
-                progressText.setTextColor(defaultProgressColor);
-
-                if (isDownloading) {
-                    progressBar.setIndeterminate(progress.totalBytes <= 0);
-                    progressBar.setMax(100);
-                    int percent = progress.totalBytes > 0 ? (int) (progress.bytesDownloaded * 100 / progress.totalBytes) : 0;
-                    progressBar.setProgress(percent);
-                    progressText.setText(String.format("%s / %s",
-                        Formatter.formatFileSize(itemView.getContext(), progress.bytesDownloaded),
-                        Formatter.formatFileSize(itemView.getContext(), progress.totalBytes)));
-                } else if (isSkipped) {
-                     String sizeInfo = progress.totalBytes > 0 ? " (" + Formatter.formatFileSize(itemView.getContext(), progress.totalBytes) + ")" : "";
-                    progressText.setText("Skipped" + sizeInfo);
-                } else if (isFailed) {
-                    progressText.setText(progress.error != null ? progress.error : "Failed");
-                    progressText.setTextColor(Color.RED);
-                } else if (progress.state == DownloadManager.DownloadState.DOWNLOADED) {
-                    long size = progress.totalBytes > 0 ? progress.totalBytes : attachment.filesize;
-                     if (size > 0) progressText.setText("" + Formatter.formatFileSize(itemView.getContext(), size) + "");
-                     else progressText.setText("Downloaded");
-                } else {
-                    long size = attachment.filesize > 0 ? attachment.filesize : progress.totalBytes;
-                    if (size > 0) {
-                        progressText.setText(Formatter.formatFileSize(itemView.getContext(), size));
-                    } else {
-                        progressText.setText("");
-                    }
-                }
+        void bindProgress() {
+            DownloadManager.DownloadProgress progress = mDownloadManager.getDownloadProgress(mAttachment.key, mAttachment.filename);
+            if (progress.state == DownloadManager.DownloadState.DOWNLOADED) {
+                fileName.setTextColor(defaultFileNameColor); // Green
+            } else {
+                fileName.setTextColor(defaultFileNameColor);
+            }
 
-                int actionIconRes;
-                switch (progress.state) {
-                    case DOWNLOADED:
-                        actionIconRes = R.drawable.badge_shareext_failed;
-                        break;
-                    case DOWNLOADING:
-                    case QUEUED:
-                        actionIconRes = R.drawable.badge_shareext_failed;
-                        break;
-                    case DOWNLOADED_BUT_NOT_EXISTS:
-                    case SKIPPED:
-                    case FAILED:
-                    case NOT_DOWNLOADED:
-                    default:
-                        actionIconRes = R.drawable.attachment_detail_download;
-                        break;
+            boolean isDownloading = progress.state == DownloadManager.DownloadState.DOWNLOADING;
+            boolean isSkipped = progress.state == DownloadManager.DownloadState.SKIPPED;
+            boolean isFailed = progress.state == DownloadManager.DownloadState.FAILED;
+
+            progressBar.setVisibility(isDownloading ? View.VISIBLE : View.GONE);
+            progressText.setVisibility(View.VISIBLE);
+            progressText.setTextColor(defaultProgressColor);
+
+            if (isDownloading) {
+                progressBar.setIndeterminate(progress.totalBytes <= 0);
+                progressBar.setMax(100);
+                int percent = progress.totalBytes > 0 ? (int) (progress.bytesDownloaded * 100 / progress.totalBytes) : 0;
+                progressBar.setProgress(percent);
+                progressText.setText(String.format("%s / %s",
+                    Formatter.formatFileSize(itemView.getContext(), progress.bytesDownloaded),
+                    Formatter.formatFileSize(itemView.getContext(), progress.totalBytes)));
+            } else if (isSkipped) {
+                 String sizeInfo = progress.totalBytes > 0 ? " (" + Formatter.formatFileSize(itemView.getContext(), progress.totalBytes) + ")" : "";
+                progressText.setText("Skipped" + sizeInfo);
+            } else if (isFailed) {
+                progressText.setText(progress.error != null ? progress.error : "Failed");
+                progressText.setTextColor(Color.RED);
+            } else if (progress.state == DownloadManager.DownloadState.DOWNLOADED) {
+                long size = progress.totalBytes > 0 ? progress.totalBytes : mAttachment.filesize;
+                 if (size > 0) progressText.setText("" + Formatter.formatFileSize(itemView.getContext(), size) + "");
+                 else progressText.setText("Downloaded");
+            } else {
+                long size = mAttachment.filesize > 0 ? mAttachment.filesize : progress.totalBytes;
+                if (size > 0) {
+                    progressText.setText(Formatter.formatFileSize(itemView.getContext(), size));
+                } else {
+                    progressText.setText("");
                 }
-                actionButton.setImageResource(actionIconRes);
-                actionButton.setOnClickListener(v -> listener.onActionClick(attachment, progress.state));
-            };
-
-            progressLiveData = downloadManager.getDownloadProgress(attachment.key, attachment.filename);
-            progressLiveData.observe(lifecycleOwner, progressObserver);
-        }
+            }
 
-        void cleanup() {
-            if (progressLiveData != null && progressObserver != null) {
-                progressLiveData.removeObserver(progressObserver);
+            int actionIconRes;
+            switch (progress.state) {
+                case DOWNLOADED:
+                    actionIconRes = R.drawable.badge_shareext_failed;
+                    break;
+                case DOWNLOADING:
+                case QUEUED:
+                    actionIconRes = R.drawable.badge_shareext_failed;
+                    break;
+                case DOWNLOADED_BUT_NOT_EXISTS:
+                case SKIPPED:
+                case FAILED:
+                case NOT_DOWNLOADED:
+                default:
+                    actionIconRes = R.drawable.attachment_detail_download;
+                    break;
             }
+            actionButton.setImageResource(actionIconRes);
+            actionButton.setOnClickListener(v -> mListener.onActionClick(mAttachment, progress.state));
         }
     }
 
-    public void filter(String query) {
-        mAttachments.clear();
-        if (query == null || query.isEmpty()) {
-            mAttachments.addAll(mAllAttachments);
+    /**
+     * Shows only the attachments whose key is in {@code matchingKeys}, or all of them
+     * when it is null. The keys come from the items_fts search index.
+     */
+    public void filter(Set<String> matchingKeys) {
+        // Submitted lists must not be mutated afterwards, so build a new one.
+        List<Item> filtered = new ArrayList<>();
+        if (matchingKeys == null) {
+            filtered.addAll(mAllAttachments);
         } else {
-            query = query.toLowerCase();
             for (Item item : mAllAttachments) {
-                // 核心修改：同时检查原始文件名和拼音首字母
-                boolean filenameMatches = item.filename != null && item.filename.toLowerCase().contains(query);
-                boolean pinyinMatches = item.titlePinyin != null && item.titlePinyin.toLowerCase().contains(query);
-
-                if (filenameMatches || pinyinMatches) {
-                    mAttachments.add(item);
+                if (matchingKeys.contains(item.key)) {
+                    filtered.add(item);
                 }
             }
         }
-        notifyDataSetChanged();
+        mAttachments = filtered;
+        mDiffer.submitList(filtered);
     }
 }
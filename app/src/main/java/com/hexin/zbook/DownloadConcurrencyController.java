@@ -0,0 +1,273 @@
+package com.hexin.zbook;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Decides how many background downloads may run against each host, AIMD-style:
+ * while a host's throughput keeps improving the limit grows by one per window, and
+ * throttling (429/503), timeouts, frequent failures or a latency blow-up halve it.
+ * Measurements come from an interceptor on the download client, keyed by the host
+ * of the original request (before redirects), the same host the scheduler uses.
+ */
+public class DownloadConcurrencyController implements Interceptor, DownloadScheduler.HostLimits {
+
+    private static final long WINDOW_MS = 2000;
+    // Hosts idle for longer than this no longer count towards the published status.
+    private static final long IDLE_MS = 10_000;
+    private static final int INITIAL_LIMIT = 3;
+    // An increase is kept up only if it bought at least this much more throughput.
+    private static final double MIN_GAIN = 1.1;
+    private static final double LATENCY_BLOWUP = 3.0;
+    private static final long LATENCY_FLOOR_MS = 1000;
+
+    /** What the download screen shows: the combined limit and throughput of the active hosts. */
+    public static class TransferStats {
+        public final int parallelism;
+        public final int active;
+        public final long bytesPerSecond;
+
+        public TransferStats(int parallelism, int active, long bytesPerSecond) {
+            this.parallelism = parallelism;
+            this.active = active;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    private static class HostState {
+        double limit;
+        int inFlight;
+        int windowPeakInFlight;
+        long windowStart;
+        long windowBytes;
+        int windowRequests;
+        int windowFailures;
+        boolean windowCongested;
+        double rate;
+        // Throughput just before the last increase; an increase that doesn't beat it is not repeated.
+        double rateBeforeIncrease;
+        double latencyMs = -1;
+        double minLatencyMs = Double.MAX_VALUE;
+        long lastActive;
+    }
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private volatile Runnable mOnLimitRaised;
+    private final Map<String, HostState> mHosts = new HashMap<>();
+    private final MutableLiveData<TransferStats> mStats = new MutableLiveData<>(new TransferStats(0, 0, 0));
+
+    public DownloadConcurrencyController(int minLimit, int maxLimit) {
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+    }
+
+    /** Called, without holding any lock, when a host may take more downloads. */
+    public void setOnLimitRaised(Runnable onLimitRaised) {
+        mOnLimitRaised = onLimitRaised;
+    }
+
+    public LiveData<TransferStats> getStats() {
+        return mStats;
+    }
+
+    @Override
+    public synchronized int limitFor(String host) {
+        HostState state = mHosts.get(host);
+        return state != null ? (int) state.limit : Math.min(Math.max(INITIAL_LIMIT, mMinLimit), mMaxLimit);
+    }
+
+    @NonNull
+    @Override
+    public Response intercept(@NonNull Chain chain) throws IOException {
+        Request request = chain.request();
+        String host = request.url().host();
+        long sent = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            HostState state = stateFor(host, sent);
+            if (state.inFlight++ == 0 && sent - state.windowStart > WINDOW_MS) {
+                // Don't let the idle time before this request count as a slow window.
+                state.windowStart = sent;
+                state.windowBytes = 0;
+            }
+            state.windowPeakInFlight = Math.max(state.windowPeakInFlight, state.inFlight);
+        }
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            requestEnded(host, e);
+            throw e;
+        }
+        int code = response.code();
+        // Only server-side errors say something about load; a 404 does not.
+        onHeaders(host, SystemClock.elapsedRealtime() - sent, code == 429 || code == 503, code >= 500);
+        ResponseBody body = response.body();
+        if (body == null || "HEAD".equals(request.method())) {
+            requestEnded(host, null);
+            return response;
+        }
+        CountingSource counted = new CountingSource(body, host);
+        return response.newBuilder()
+                .body(ResponseBody.create(Okio.buffer(counted), body.contentType(), body.contentLength()))
+                .build();
+    }
+
+    private HostState stateFor(String host, long now) {
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            state = new HostState();
+            state.limit = limitFor(host);
+            state.windowStart = now;
+            mHosts.put(host, state);
+        }
+        state.lastActive = now;
+        return state;
+    }
+
+    private void onHeaders(String host, long latencyMs, boolean throttled, boolean failed) {
+        boolean raised;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            HostState state = stateFor(host, now);
+            state.windowRequests++;
+            if (failed) state.windowFailures++;
+            if (throttled) state.windowCongested = true;
+            if (!failed) {
+                state.minLatencyMs = Math.min(state.minLatencyMs, latencyMs);
+                state.latencyMs = state.latencyMs < 0 ? latencyMs : 0.7 * state.latencyMs + 0.3 * latencyMs;
+            }
+            raised = maybeCloseWindow(state, now);
+        }
+        if (raised && mOnLimitRaised != null) mOnLimitRaised.run();
+    }
+
+    private void onBytes(String host, long bytes) {
+        boolean raised;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            HostState state = stateFor(host, now);
+            state.windowBytes += bytes;
+            raised = maybeCloseWindow(state, now);
+        }
+        if (raised && mOnLimitRaised != null) mOnLimitRaised.run();
+    }
+
+    /** @param error why the transfer failed, or null if it completed or was closed */
+    private void requestEnded(String host, IOException error) {
+        synchronized (this) {
+            HostState state = stateFor(host, SystemClock.elapsedRealtime());
+            state.inFlight--;
+            // A cancelled download interrupts its thread; that says nothing about the server.
+            if (error != null && !Thread.currentThread().isInterrupted()) {
+                state.windowRequests++;
+                state.windowFailures++;
+                if (error instanceof SocketTimeoutException) state.windowCongested = true;
+            }
+            publishStats(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /** Returns true if the limit was raised. */
+    private boolean maybeCloseWindow(HostState state, long now) {
+        long elapsed = now - state.windowStart;
+        if (elapsed < WINDOW_MS) return false;
+
+        double windowRate = state.windowBytes * 1000.0 / elapsed;
+        state.rate = state.rate == 0 ? windowRate : 0.5 * state.rate + 0.5 * windowRate;
+        boolean latencyBlowUp = state.latencyMs > LATENCY_FLOOR_MS
+                && state.latencyMs > LATENCY_BLOWUP * state.minLatencyMs;
+        boolean failing = state.windowFailures > 0 && state.windowFailures * 5 >= state.windowRequests;
+        // Only worth raising if the host actually used all the downloads it was allowed.
+        boolean saturated = state.windowPeakInFlight >= (int) state.limit;
+
+        boolean raised = false;
+        if (state.windowCongested || failing || latencyBlowUp) {
+            state.limit = Math.max(mMinLimit, state.limit / 2);
+            // Probe again from the new level.
+            state.rateBeforeIncrease = 0;
+        } else if (saturated && state.limit < mMaxLimit && state.rate >= state.rateBeforeIncrease * MIN_GAIN) {
+            state.rateBeforeIncrease = state.rate;
+            state.limit = Math.min(mMaxLimit, state.limit + 1);
+            raised = true;
+        } else {
+            // Let an old measurement fade so the limit is probed again later.
+            state.rateBeforeIncrease *= 0.9;
+        }
+
+        state.windowStart = now;
+        state.windowBytes = 0;
+        state.windowRequests = 0;
+        state.windowFailures = 0;
+        state.windowCongested = false;
+        state.windowPeakInFlight = state.inFlight;
+        publishStats(now);
+        return raised;
+    }
+
+    private void publishStats(long now) {
+        int parallelism = 0;
+        int active = 0;
+        double rate = 0;
+        for (HostState state : mHosts.values()) {
+            if (state.inFlight == 0 && now - state.lastActive > IDLE_MS) continue;
+            parallelism += (int) state.limit;
+            active += state.inFlight;
+            rate += state.rate;
+        }
+        mStats.postValue(new TransferStats(parallelism, active, (long) rate));
+    }
+
+    /** Reports every chunk read from a response body, and how the transfer ended. */
+    private class CountingSource extends ForwardingSource {
+        private final String mHost;
+        private boolean mEnded;
+
+        CountingSource(ResponseBody body, String host) {
+            super(body.source());
+            mHost = host;
+        }
+
+        @Override
+        public long read(@NonNull Buffer sink, long byteCount) throws IOException {
+            long read;
+            try {
+                read = super.read(sink, byteCount);
+            } catch (IOException e) {
+                end(e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException) ? null : e);
+                throw e;
+            }
+            if (read > 0) onBytes(mHost, read);
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            end(null);
+            super.close();
+        }
+
+        private void end(IOException error) {
+            if (mEnded) return;
+            mEnded = true;
+            requestEnded(mHost, error);
+        }
+    }
+}
@@ -5,24 +5,36 @@ import android.util.Log;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import okhttp3.Credentials;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -31,19 +43,36 @@ import okhttp3.ResponseBody;
 public class DownloadManager {
 
     private static final String TAG = "DownloadManager";
+    private static final long PROGRESS_MIN_STEP = 64 * 1024;
+    // How often the .part file is synced and its offset recorded for resuming.
+    private static final long RESUME_CHECKPOINT_BYTES = 1024 * 1024;
+    private static final String QUEUE_WORK_NAME = "download_queue";
     private static volatile DownloadManager INSTANCE;
     private final Context mContext;
     private final OkHttpClient mHttpClient;
-    private final ExecutorService mExecutor = Executors.newFixedThreadPool(3);
+    private final DownloadConcurrencyController mConcurrency;
+    private final DownloadScheduler mScheduler;
     private final SettingsManager mSettingsManager;
+    private final DownloadResumeStore mResumeStore;
     private final ItemDao mItemDao;
+    private final DownloadQueueDao mQueueDao;
+    private final WebDavIndex mWebDavIndex;
 
-    private final Map<String, MutableLiveData<DownloadProgress>> mProgressMap = new ConcurrentHashMap<>();
-    private final Map<String, Future<?>> mTaskMap = new ConcurrentHashMap<>();
+    private final DownloadProgressHub mProgressHub = new DownloadProgressHub();
     private final MutableLiveData<GlobalDownloadProgress> mGlobalProgress = new MutableLiveData<>();
 
     private final AtomicInteger mBulkTotal = new AtomicInteger(0);
     private final AtomicInteger mBulkDownloaded = new AtomicInteger(0);
+    private final ConcurrentLinkedQueue<Item> mBulkQueue = new ConcurrentLinkedQueue<>();
+    private final BulkSource mBulkSource = new BulkSource();
+
+    // Guards download_queue rows against mActiveKeys, so a row is never picked up twice.
+    private final Object mQueueLock = new Object();
+    // Queued keys this process has handed to the scheduler.
+    private final Set<String> mActiveKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // Keys interrupted because the queue work was stopped; their rows stay queued.
+    private final Set<String> mPausedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private boolean mQueueSuspended;
 
     public enum DownloadState {
         NOT_DOWNLOADED, QUEUED, DOWNLOADING, DOWNLOADED, FAILED, SKIPPED, DOWNLOADED_BUT_NOT_EXISTS
@@ -74,11 +103,18 @@ public class DownloadManager {
         }
     }
 
-    private DownloadManager(Context context, ItemDao itemDao) {
+    private DownloadManager(Context context, ItemDao itemDao, DownloadQueueDao queueDao, WebDavIndexDao webDavIndexDao) {
         mContext = context.getApplicationContext();
-        mHttpClient = new OkHttpClient();
         mSettingsManager = SettingsManager.getInstance(context);
+        int maxParallel = mSettingsManager.getMaxParallelDownloads();
+        mConcurrency = new DownloadConcurrencyController(mSettingsManager.getMinParallelDownloads(), maxParallel);
+        mScheduler = new DownloadScheduler(mConcurrency, maxParallel);
+        mConcurrency.setOnLimitRaised(mScheduler::poke);
+        mHttpClient = HttpClients.transfer().newBuilder().addInterceptor(mConcurrency).build();
+        mResumeStore = new DownloadResumeStore(mContext);
         mItemDao = itemDao;
+        mQueueDao = queueDao;
+        mWebDavIndex = new WebDavIndex(mHttpClient, mSettingsManager, webDavIndexDao, itemDao);
         mGlobalProgress.postValue(new GlobalDownloadProgress(false, 0, 0));
     }
 
@@ -87,7 +123,7 @@ public class DownloadManager {
             synchronized (DownloadManager.class) {
                 if (INSTANCE == null) {
                     AppDatabase db = AppDatabase.getDatabase(context.getApplicationContext());
-                    INSTANCE = new DownloadManager(context.getApplicationContext(), db.itemDao());
+                    INSTANCE = new DownloadManager(context.getApplicationContext(), db.itemDao(), db.downloadQueueDao(), db.webDavIndexDao());
                 }
             }
         }
@@ -96,16 +132,33 @@ public class DownloadManager {
 
     public LiveData<GlobalDownloadProgress> getGlobalDownloadProgress() { return mGlobalProgress; }
 
-    public LiveData<DownloadProgress> getDownloadProgress(String key, String filename) {
-        if (!mProgressMap.containsKey(key)) {
-            MutableLiveData<DownloadProgress> liveData = new MutableLiveData<>();
+    /**
+     * Batches of attachments whose progress changed, keyed by item key, published at
+     * most every {@link DownloadProgressHub#PUBLISH_INTERVAL_MS}.
+     */
+    public LiveData<Map<String, DownloadProgress>> getProgressUpdates() {
+        return mProgressHub.getUpdates();
+    }
+
+    /** Current download parallelism and throughput, updated every couple of seconds while downloading. */
+    public LiveData<DownloadConcurrencyController.TransferStats> getTransferStats() {
+        return mConcurrency.getStats();
+    }
+
+    public DownloadProgress getDownloadProgress(String key, String filename) {
+        DownloadProgress progress = mProgressHub.get(key);
+        if (progress == null) {
             File file = getLocalFileForItem(filename, key);
             long fileSize = file.exists() ? file.length() : 0;
             DownloadState state = file.exists() ? DownloadState.DOWNLOADED : DownloadState.NOT_DOWNLOADED;
-            liveData.postValue(new DownloadProgress(state, fileSize, fileSize, null));
-            mProgressMap.put(key, liveData);
+            mProgressHub.seed(key, state, fileSize, fileSize);
+            progress = new DownloadProgress(state, fileSize, fileSize, null);
         }
-        return mProgressMap.get(key);
+        return progress;
+    }
+
+    private void postProgress(String key, DownloadState state, long bytes, long total, String error) {
+        mProgressHub.update(key, state, bytes, total, error);
     }
 
     public void startAllDownloads(List<Item> allAttachments) {
@@ -120,8 +173,7 @@ public class DownloadManager {
 
             // For bulk downloads, always pre-check Zotero storage items with known filesize
             if (attachment.filesize > 0 && thresholdMb != -1 && attachment.filesize > thresholdMb * 1024L * 1024L) {
-                ((MutableLiveData<DownloadProgress>) getDownloadProgress(attachment.key, attachment.filename))
-                    .postValue(new DownloadProgress(DownloadState.SKIPPED, 0, attachment.filesize, "File size exceeds threshold"));
+                postProgress(attachment.key, DownloadState.SKIPPED, 0, attachment.filesize, "File size exceeds threshold");
                 continue;
             }
             toDownload.add(attachment);
@@ -129,19 +181,292 @@ public class DownloadManager {
 
         if (toDownload.isEmpty()) return;
 
-        mBulkTotal.set(toDownload.size());
-        mBulkDownloaded.set(0);
         mGlobalProgress.postValue(new GlobalDownloadProgress(true, 0, toDownload.size()));
-
         for (Item attachment : toDownload) {
-            startDownload(attachment, true); // isBulk = true
+            postProgress(attachment.key, DownloadState.QUEUED, 0, 0, null);
         }
+        AppExecutors.getInstance().networkIO().execute(() -> {
+            // WebDAV sizes aren't known from the sync; one folder listing supplies them all.
+            Map<String, WebDavFile> listed = listWebDavFiles(toDownload);
+            long now = System.currentTimeMillis();
+            List<QueuedDownload> rows = new ArrayList<>(toDownload.size());
+            for (Item attachment : toDownload) {
+                WebDavFile file = listed.get(attachment.key);
+                if (file != null && thresholdMb != -1 && file.size > thresholdMb * 1024L * 1024L) {
+                    postProgress(attachment.key, DownloadState.SKIPPED, 0, file.size, "File size exceeds threshold");
+                    continue;
+                }
+                rows.add(new QueuedDownload(attachment.key, DownloadScheduler.Lane.BULK, now));
+            }
+            // DownloadQueueWorker starts them once the network and charging constraints are met.
+            AppExecutors.getInstance().diskWrite().execute(() -> insertQueued(rows));
+        });
+    }
+
+    /**
+     * Queues the downloaded attachments whose local copy no longer matches the file
+     * on the server; unchanged ones are not transferred again. Copies without a
+     * recorded checksum are hashed, so call this off the main thread; the database
+     * writes go to the disk-write executor.
+     *
+     * @return how many attachments were queued
+     */
+    public int refreshStaleAttachments(List<Item> attachments) {
+        long now = System.currentTimeMillis();
+        List<QueuedDownload> rows = new ArrayList<>();
+        for (Item attachment : attachments) {
+            File file = getLocalFileForItem(attachment.filename, attachment.key);
+            if (!file.isFile() || mScheduler.isScheduled(attachment.key) || isLocalCopyCurrent(attachment, file)) continue;
+            postProgress(attachment.key, DownloadState.QUEUED, 0, 0, null);
+            rows.add(new QueuedDownload(attachment.key, DownloadScheduler.Lane.BULK, now));
+        }
+        if (rows.isEmpty()) return 0;
+        AppExecutors.getInstance().diskWrite().execute(() -> insertQueued(rows));
+        return rows.size();
+    }
+
+    /**
+     * Whether any of {@code attachments} has a local copy that can't be checked yet,
+     * because its checksum hasn't been synced since {@link AppDatabase#MIGRATION_15_16}.
+     */
+    public boolean hasUncheckedCopies(List<Item> attachments) {
+        for (Item attachment : attachments) {
+            if (attachment.version == 0 && getLocalFileForItem(attachment.filename, attachment.key).isFile()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether {@code file} still matches the server's copy. A matching mtime is trusted;
+     * otherwise the checksums decide, hashing the file once if it has no recorded one.
+     * Can take as long as reading the file; don't call it holding {@link #mQueueLock}.
+     */
+    private boolean isLocalCopyCurrent(Item attachment, File file) {
+        if (attachment.md5 == null || attachment.md5.isEmpty()) return true;
+        // File systems may keep only whole seconds.
+        if (attachment.mtime > 0 && file.lastModified() / 1000 == attachment.mtime / 1000) return true;
+
+        String localMd5 = attachment.localMd5;
+        if (localMd5 == null) {
+            try {
+                localMd5 = Utils.md5Hex(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not hash " + file, e);
+                return false;
+            }
+            saveLocalMd5(attachment.key, localMd5);
+        }
+        boolean current = attachment.md5.equalsIgnoreCase(localMd5);
+        // Only the mtime changed; next time the quick check is enough.
+        if (current && attachment.mtime > 0) file.setLastModified(attachment.mtime);
+        return current;
+    }
+
+    /** Remembers what was downloaded, so later freshness checks needn't hash the file. */
+    private void recordLocalCopy(Item attachment, File file, String md5) {
+        saveLocalMd5(attachment.key, md5);
+        if (attachment.mtime > 0) file.setLastModified(attachment.mtime);
+    }
+
+    private void saveLocalMd5(String key, String md5) {
+        AppExecutors.getInstance().diskWrite().execute(() -> mItemDao.updateLocalMd5(key, md5));
+    }
+
+    /** Lists the WebDAV storage folder in the background, so the download screen can show sizes. */
+    public void refreshWebDavIndex() {
+        AppExecutors.getInstance().networkIO().execute(() -> {
+            try {
+                mWebDavIndex.refreshIfStale();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not list the WebDAV folder", e);
+            }
+        });
+    }
+
+    private Map<String, WebDavFile> listWebDavFiles(List<Item> attachments) {
+        List<String> keys = new ArrayList<>();
+        for (Item attachment : attachments) {
+            if (attachment.url == null || attachment.url.isEmpty()) keys.add(attachment.key);
+        }
+        if (keys.isEmpty()) return new HashMap<>();
+        try {
+            mWebDavIndex.refreshIfStale();
+        } catch (IOException e) {
+            // Each download falls back to a HEAD request.
+            Log.w(TAG, "Could not list the WebDAV folder", e);
+        }
+        return mWebDavIndex.lookupAll(keys);
+    }
+
+    /** Called by {@link DownloadQueueWorker} before it starts working through the queue. */
+    void onQueueWorkStarted() {
+        synchronized (mQueueLock) {
+            mQueueSuspended = false;
+        }
+    }
+
+    /**
+     * Schedules the rows of download_queue this process is not working on yet: all
+     * of them after a restart, new ones otherwise. Runs on the worker's thread.
+     */
+    void resumeQueue() {
+        List<QueuedDownload> rows = new ArrayList<>();
+        Map<String, Item> items = new HashMap<>();
+        synchronized (mQueueLock) {
+            if (mQueueSuspended || mQueueDao.count() <= mActiveKeys.size()) return;
+            List<String> keys = new ArrayList<>();
+            for (QueuedDownload row : mQueueDao.getAll()) {
+                if (mActiveKeys.contains(row.itemKey)) continue;
+                rows.add(row);
+                keys.add(row.itemKey);
+            }
+            for (List<String> chunk : Utils.partition(keys, AppDatabase.MAX_BIND_ARGS)) {
+                for (Item item : mItemDao.getItemsByKeys(chunk)) items.put(item.key, item);
+            }
+        }
+
+        // Checking a local copy may hash the whole file; finishQueued() must not wait behind that.
+        Set<String> done = new HashSet<>();
+        for (QueuedDownload row : rows) {
+            Item attachment = items.get(row.itemKey);
+            // Deleted by a sync, or finished just before the process died.
+            if (attachment == null) {
+                done.add(row.itemKey);
+            } else {
+                File file = getLocalFileForItem(attachment.filename, attachment.key);
+                if (file.exists() && isLocalCopyCurrent(attachment, file)) done.add(row.itemKey);
+            }
+        }
+
+        synchronized (mQueueLock) {
+            // Paused, cancelled or finished while the files were checked.
+            if (mQueueSuspended) return;
+            Set<String> queued = new HashSet<>(mQueueDao.getKeys());
+            List<Item> bulk = new ArrayList<>();
+            for (QueuedDownload row : rows) {
+                if (!queued.contains(row.itemKey) || mActiveKeys.contains(row.itemKey)) continue;
+                if (done.contains(row.itemKey)) {
+                    mQueueDao.delete(row.itemKey);
+                    continue;
+                }
+                Item attachment = items.get(row.itemKey);
+                mActiveKeys.add(row.itemKey);
+                // A stale copy would otherwise count as downloaded.
+                postProgress(row.itemKey, DownloadState.QUEUED, 0, 0, null);
+                if (row.getLane() == DownloadScheduler.Lane.BULK) {
+                    bulk.add(attachment);
+                } else {
+                    schedule(attachment, row.getLane());
+                }
+            }
+            if (!bulk.isEmpty()) {
+                int total = mBulkTotal.addAndGet(bulk.size());
+                mGlobalProgress.postValue(new GlobalDownloadProgress(true, mBulkDownloaded.get(), total));
+                mBulkQueue.addAll(bulk);
+                // Jobs are created only as the scheduler has room for them.
+                mScheduler.submitBulk(mBulkSource);
+            }
+        }
+    }
+
+    boolean hasQueuedDownloads() {
+        return mQueueDao.count() > 0;
+    }
+
+    /**
+     * Blocks until a queued download finishes, more are queued or the queue is paused,
+     * or {@code timeoutMs} passes. Returns at once if there is something to resume.
+     */
+    void awaitQueueChange(long timeoutMs) throws InterruptedException {
+        synchronized (mQueueLock) {
+            int queued = mQueueDao.count();
+            if (!mQueueSuspended && queued > 0 && queued <= mActiveKeys.size()) mQueueLock.wait(timeoutMs);
+        }
+    }
+
+    /**
+     * Stops the prefetch and bulk downloads because the queue work was stopped, e.g.
+     * when the device left an unmetered network. Their rows stay queued for the next
+     * run. Downloads the user tapped keep running; they never waited for the constraints.
+     */
+    void pauseQueue() {
+        synchronized (mQueueLock) {
+            mQueueSuspended = true;
+            // Bulk attachments not handed to the scheduler yet just stay queued.
+            Item waiting;
+            while ((waiting = mBulkQueue.poll()) != null) mActiveKeys.remove(waiting.key);
+            for (String key : mScheduler.backgroundKeys()) {
+                if (mActiveKeys.remove(key)) mPausedKeys.add(key);
+            }
+            mQueueLock.notifyAll();
+        }
+        mScheduler.cancelBackground();
+        resetBulkProgress();
+    }
+
+    private void insertQueued(List<QueuedDownload> rows) {
+        synchronized (mQueueLock) {
+            mQueueDao.insertAll(rows);
+            mQueueLock.notifyAll();
+        }
+        // Starts the work, or queues a run after the current one with the current constraints.
+        enqueueQueueWork(ExistingWorkPolicy.APPEND_OR_REPLACE);
+    }
+
+    /** Re-applies the download constraints from the settings to the queued work. */
+    public void onQueueConstraintsChanged() {
+        AppExecutors.getInstance().diskWrite().execute(() -> {
+            if (hasQueuedDownloads()) enqueueQueueWork(ExistingWorkPolicy.REPLACE);
+        });
+    }
+
+    private void enqueueQueueWork(ExistingWorkPolicy policy) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(mSettingsManager.getDownloadOnlyOnUnmetered() ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+                .setRequiresCharging(mSettingsManager.getDownloadOnlyWhileCharging())
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(DownloadQueueWorker.class)
+                .setConstraints(constraints)
+                .build();
+        WorkManager.getInstance(mContext).enqueueUniqueWork(QUEUE_WORK_NAME, policy, request);
+    }
+
+    /** Removes the queue row of a download that succeeded, failed for good or was cancelled. */
+    private void finishQueued(String key) {
+        mPausedKeys.remove(key);
+        AppExecutors.getInstance().diskWrite().execute(() -> {
+            synchronized (mQueueLock) {
+                mQueueDao.delete(key);
+                mActiveKeys.remove(key);
+                mQueueLock.notifyAll();
+            }
+        });
     }
 
     public void startDownload(Item attachment, boolean isBulk) {
-        MutableLiveData<DownloadProgress> liveData = (MutableLiveData<DownloadProgress>) getDownloadProgress(attachment.key, attachment.filename);
-        DownloadProgress current = liveData.getValue();
-        if (current != null && (current.state == DownloadState.DOWNLOADING || current.state == DownloadState.DOWNLOADED)) return;
+        startDownload(attachment, isBulk ? DownloadScheduler.Lane.BULK : DownloadScheduler.Lane.INTERACTIVE);
+    }
+
+    /**
+     * Queues {@code attachment} in {@code lane}. Starting an attachment that is already
+     * queued in a lower lane moves it up. The download starts right away, regardless of
+     * the queue's constraints, and is kept in download_queue in case the process dies.
+     */
+    public void startDownload(Item attachment, DownloadScheduler.Lane lane) {
+        DownloadProgress current = getDownloadProgress(attachment.key, attachment.filename);
+        if (current.state == DownloadState.DOWNLOADING || current.state == DownloadState.DOWNLOADED) return;
+
+        mActiveKeys.add(attachment.key);
+        QueuedDownload row = new QueuedDownload(attachment.key, lane, System.currentTimeMillis());
+        AppExecutors.getInstance().diskWrite().execute(() -> insertQueued(Collections.singletonList(row)));
+        schedule(attachment, lane);
+    }
+
+    private void schedule(Item attachment, DownloadScheduler.Lane lane) {
+        String key = attachment.key;
+        boolean isBulk = lane == DownloadScheduler.Lane.BULK;
+        DownloadProgress current = getDownloadProgress(key, attachment.filename);
+        if (current.state == DownloadState.DOWNLOADING || current.state == DownloadState.DOWNLOADED) return;
 
         try {
             // Pre-flight check for Zotero items with known filesize, only in bulk mode.
@@ -152,25 +477,71 @@ public class DownloadManager {
                 }
             }
 
-            liveData.postValue(new DownloadProgress(DownloadState.QUEUED, 0, 0, null));
-            Runnable task = () -> {
-                try {
-                    if (attachment.url != null && !attachment.url.isEmpty()) {
-                        downloadZoteroStorage(attachment, liveData);
-                    } else {
-                        downloadWebDav(attachment, liveData, isBulk);
-                    }
-                    if (isBulk) incrementBulkProgress();
-                } catch (Exception e) {
-                     handleDownloadException(e, getLocalFileForItem(attachment.filename, attachment.key), liveData, isBulk);
-                } finally {
-                    mTaskMap.remove(attachment.key);
-                }
-            };
-            mTaskMap.put(attachment.key, mExecutor.submit(task));
+            postProgress(key, DownloadState.QUEUED, 0, 0, null);
+            mScheduler.submit(newJob(attachment, isBulk), lane);
 
         } catch (Exception e) {
-            handleDownloadException(e, null, liveData, isBulk);
+            handleDownloadException(e, key, isBulk);
+        }
+    }
+
+    private DownloadScheduler.Job newJob(Item attachment, boolean isBulk) {
+        String key = attachment.key;
+        Runnable work = () -> {
+            try {
+                if (attachment.url != null && !attachment.url.isEmpty()) {
+                    downloadZoteroStorage(attachment);
+                } else {
+                    downloadWebDav(attachment, isBulk);
+                }
+                finishQueued(key);
+                if (isBulk) incrementBulkProgress();
+            } catch (Exception e) {
+                 handleDownloadException(e, key, isBulk);
+            }
+        };
+        Runnable dropped = () -> {
+            if (mPausedKeys.remove(key)) return;
+            finishQueued(key);
+            postProgress(key, DownloadState.NOT_DOWNLOADED, 0, 0, "Cancelled");
+            if (isBulk) incrementBulkProgress();
+        };
+        return new DownloadScheduler.Job(key, hostFor(attachment), work, dropped);
+    }
+
+    /** The server an attachment is fetched from, for the scheduler's per-host limits. */
+    private String hostFor(Item attachment) {
+        String url = attachment.url != null && !attachment.url.isEmpty() ? attachment.url : mSettingsManager.getWebDavUrl();
+        HttpUrl parsed = url != null ? HttpUrl.parse(url) : null;
+        return parsed != null ? parsed.host() : "";
+    }
+
+    /**
+     * Hands the queued bulk attachments to the scheduler one at a time. An attachment
+     * that was cancelled, or started on its own, by the time its turn comes is counted
+     * as done and skipped.
+     */
+    private class BulkSource implements DownloadScheduler.JobSource {
+
+        @Override
+        public DownloadScheduler.Job next() {
+            Item attachment;
+            while ((attachment = mBulkQueue.poll()) != null) {
+                DownloadProgress progress = mProgressHub.get(attachment.key);
+                if (progress == null || progress.state != DownloadState.QUEUED || mScheduler.isScheduled(attachment.key)) {
+                    if (!mScheduler.isScheduled(attachment.key)) finishQueued(attachment.key);
+                    incrementBulkProgress();
+                    continue;
+                }
+                return newJob(attachment, true);
+            }
+            return null;
+        }
+
+        @Override
+        public void abandon() {
+            // Attachments still in mBulkQueue keep their QUEUED state; whoever drops
+            // the source decides what happens to them.
         }
     }
 
@@ -178,20 +549,23 @@ public class DownloadManager {
         int downloaded = mBulkDownloaded.incrementAndGet();
         int total = mBulkTotal.get();
         mGlobalProgress.postValue(new GlobalDownloadProgress(true, downloaded, total));
-        if (downloaded >= total) {
-            mBulkTotal.set(0);
-            mBulkDownloaded.set(0);
-            mGlobalProgress.postValue(new GlobalDownloadProgress(false, 0, 0));
-        }
+        if (downloaded >= total) resetBulkProgress();
     }
 
-    private void downloadZoteroStorage(Item attachment, MutableLiveData<DownloadProgress> liveData) throws Exception {
+    private void resetBulkProgress() {
+        mBulkTotal.set(0);
+        mBulkDownloaded.set(0);
+        mGlobalProgress.postValue(new GlobalDownloadProgress(false, 0, 0));
+    }
+
+    private void downloadZoteroStorage(Item attachment) throws Exception {
         File outputFile = getLocalFileForItem(attachment.filename, attachment.key);
-        executeDownload(new Request.Builder().url(attachment.url).build(), outputFile, liveData, attachment.filename);
-        liveData.postValue(new DownloadProgress(DownloadState.DOWNLOADED, outputFile.length(), outputFile.length(), null));
+        String md5 = executeDownload(new Request.Builder().url(attachment.url).build(), outputFile, attachment.key, attachment.md5);
+        recordLocalCopy(attachment, outputFile, md5);
+        postProgress(attachment.key, DownloadState.DOWNLOADED, outputFile.length(), outputFile.length(), null);
     }
 
-    private void downloadWebDav(Item attachment, MutableLiveData<DownloadProgress> liveData, boolean isBulk) throws Exception {
+    private void downloadWebDav(Item attachment, boolean isBulk) throws Exception {
         String url = mSettingsManager.getWebDavUrl();
         if (url == null || url.isEmpty()) throw new IOException("WebDAV URL not configured");
         if (!url.endsWith("/")) url += "/";
@@ -201,15 +575,21 @@ public class DownloadManager {
         if (user != null && !user.isEmpty()) builder.header("Authorization", Credentials.basic(user, mSettingsManager.getWebDavPassword()));
 
         long fileSize;
-        try (Response headResponse = mHttpClient.newCall(builder.head().build()).execute()) {
-            if (!headResponse.isSuccessful()) throw new IOException("Failed to get file size: " + headResponse.code());
-            String lengthHeader = headResponse.header("Content-Length");
-            fileSize = lengthHeader != null ? Long.parseLong(lengthHeader) : -1;
-        }
+        WebDavFile listed = mWebDavIndex.lookup(attachment.key);
+        if (listed != null && listed.size > 0) {
+            // The folder listing already copied it to the item.
+            fileSize = listed.size;
+        } else {
+            try (Response headResponse = mHttpClient.newCall(builder.head().build()).execute()) {
+                if (!headResponse.isSuccessful()) throw new IOException("Failed to get file size: " + headResponse.code());
+                String lengthHeader = headResponse.header("Content-Length");
+                fileSize = lengthHeader != null ? Long.parseLong(lengthHeader) : -1;
+            }
 
-        // Update the filesize in the database as soon as we know it.
-        if(fileSize > 0){
-            mItemDao.updateFileSize(attachment.key, fileSize);
+            // Update the filesize in the database as soon as we know it.
+            if(fileSize > 0){
+                mItemDao.updateFileSize(attachment.key, fileSize);
+            }
         }
 
         // Only perform the check for bulk downloads
@@ -220,20 +600,78 @@ public class DownloadManager {
             }
         }
 
-        File outputFile = getLocalFileForItem(attachment.filename, attachment.key);
-        File tempZipFile = File.createTempFile("dl-", ".zip", mContext.getCacheDir());
+        // Entries are inflated straight from the response into a staging directory and
+        // moved into place once the whole archive has arrived.
+        File staging = new File(getAttachmentsDir(), attachment.key + ".part");
+        deleteRecursively(staging);
         try {
-            executeDownload(builder.get().build(), tempZipFile, liveData, attachment.filename != null ? attachment.filename + ".zip" : "file.zip");
-            liveData.postValue(new DownloadProgress(DownloadState.DOWNLOADING, tempZipFile.length(), tempZipFile.length(), "Unzipping..."));
-            unzip(tempZipFile, outputFile);
-            liveData.postValue(new DownloadProgress(DownloadState.DOWNLOADED, outputFile.length(), outputFile.length(), null));
+            Map<String, String> entries;
+            try (Response response = mHttpClient.newCall(builder.get().build()).execute()) {
+                if (!response.isSuccessful()) {
+                    if (response.code() == 404) throw new IOException("File not found on server");
+                    throw new IOException("Server error: " + response.code());
+                }
+                ResponseBody body = response.body();
+                if (body == null) throw new IOException("Empty response body");
+                long total = body.contentLength() >= 0 ? body.contentLength() : fileSize;
+                entries = unzipStream(body.byteStream(), staging, attachment.key, total);
+            }
+
+            // Zotero's checksum is that of the main file: the only entry, or the one named like the attachment.
+            String mainEntry = entries.size() == 1 ? entries.keySet().iterator().next() : attachment.filename;
+            String md5 = entries.get(mainEntry);
+            if (attachment.md5 != null && !attachment.md5.isEmpty() && md5 != null && !attachment.md5.equalsIgnoreCase(md5)) {
+                throw new IOException("Checksum mismatch, the download was discarded");
+            }
+
+            File outputFile;
+            if (entries.size() == 1) {
+                outputFile = getLocalFileForItem(attachment.filename, attachment.key);
+                commitPartFile(new File(staging, mainEntry), outputFile);
+            } else {
+                // Snapshots with several files keep their layout, so relative links still work.
+                File snapshotDir = new File(getAttachmentsDir(), attachment.key);
+                deleteRecursively(snapshotDir);
+                if (!staging.renameTo(snapshotDir)) throw new IOException("Could not move " + staging.getName() + " into place");
+                outputFile = getLocalFileForItem(attachment.filename, attachment.key);
+            }
+            if (md5 != null) recordLocalCopy(attachment, outputFile, md5);
+            postProgress(attachment.key, DownloadState.DOWNLOADED, outputFile.length(), outputFile.length(), null);
         } finally {
-            if (tempZipFile != null) tempZipFile.delete();
+            deleteRecursively(staging);
         }
     }
 
-    private void executeDownload(Request request, File file, MutableLiveData<DownloadProgress> liveData, String currentFileName) throws IOException, InterruptedException {
-        try (Response response = mHttpClient.newCall(request).execute()) {
+    /**
+     * Downloads into {@code file}.part and renames it to {@code file} once complete, so
+     * {@code file} is never half-written. A part file left by an earlier attempt is
+     * continued with Range/If-Range; if the server's file changed it answers with the
+     * whole body and the part file is overwritten. The MD5 covers the whole file,
+     * resumed prefix included; if {@code expectedMd5} is known and doesn't match, the
+     * part file is discarded and nothing is moved into place.
+     *
+     * @return the MD5 of the downloaded file
+     */
+    private String executeDownload(Request request, File file, String key, String expectedMd5) throws IOException, InterruptedException {
+        File part = partFileFor(file);
+        String url = request.url().toString();
+        long offset = mResumeStore.resumableOffset(key, url, part);
+
+        Request.Builder builder = request.newBuilder();
+        if (offset > 0) {
+            builder.header("Range", "bytes=" + offset + "-").header("If-Range", mResumeStore.getValidator(key));
+        }
+
+        long total;
+        long downloaded;
+        MessageDigest md5 = Utils.newMd5();
+        try (Response response = mHttpClient.newCall(builder.build()).execute()) {
+            if (response.code() == 416 && offset > 0) {
+                // The part file is no longer a prefix of the server's file.
+                mResumeStore.clear(key);
+                part.delete();
+                throw new IOException("Download could not be resumed, please retry");
+            }
             if (!response.isSuccessful()) {
                 if (response.code() == 404) throw new IOException("File not found on server");
                 throw new IOException("Server error: " + response.code());
@@ -241,73 +679,267 @@ public class DownloadManager {
             ResponseBody body = response.body();
             if (body == null) throw new IOException("Empty response body");
 
-            long total = body.contentLength();
-            long downloaded = 0;
-            try (InputStream in = body.byteStream(); FileOutputStream out = new FileOutputStream(file)) {
-                byte[] buffer = new byte[4 * 1024];
-                int read;
-                while ((read = in.read(buffer)) != -1) {
-                    if (Thread.currentThread().isInterrupted()) throw new InterruptedException("Download cancelled");
-                    out.write(buffer, 0, read);
-                    downloaded += read;
-                    liveData.postValue(new DownloadProgress(DownloadState.DOWNLOADING, downloaded, total, null));
+            boolean append = offset > 0 && response.code() == 206;
+            long length = body.contentLength();
+            if (append) {
+                total = length >= 0 ? offset + length : mResumeStore.getTotal(key);
+            } else {
+                offset = 0;
+                total = length;
+                mResumeStore.begin(key, url, validatorOf(response), total);
+            }
+            // The hash has to cover the bytes of an earlier attempt too.
+            if (append) Utils.updateDigest(md5, part, offset);
+
+            downloaded = offset;
+            // The hub throttles publishing anyway; this just avoids taking its lock for every buffer.
+            long reportStep = total > 0 ? Math.max(total / 100, PROGRESS_MIN_STEP) : PROGRESS_MIN_STEP;
+            long reported = offset;
+            long checkpointed = offset;
+            postProgress(key, DownloadState.DOWNLOADING, downloaded, total, null);
+            try (InputStream in = body.byteStream(); FileOutputStream out = new FileOutputStream(part, append)) {
+                try {
+                    byte[] buffer = new byte[8 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        if (Thread.currentThread().isInterrupted()) throw new InterruptedException("Download cancelled");
+                        out.write(buffer, 0, read);
+                        md5.update(buffer, 0, read);
+                        downloaded += read;
+                        if (downloaded - reported >= reportStep) {
+                            reported = downloaded;
+                            postProgress(key, DownloadState.DOWNLOADING, downloaded, total, null);
+                        }
+                        if (downloaded - checkpointed >= RESUME_CHECKPOINT_BYTES) {
+                            out.getFD().sync();
+                            mResumeStore.setOffset(key, downloaded);
+                            checkpointed = downloaded;
+                        }
+                    }
+                } finally {
+                    // Keep whatever arrived so a retry can continue from here.
+                    try {
+                        out.getFD().sync();
+                        mResumeStore.setOffset(key, downloaded);
+                    } catch (IOException ignored) {
+                        // The last checkpoint still stands.
+                    }
                 }
             }
         }
+        postProgress(key, DownloadState.DOWNLOADING, downloaded, total, null);
+
+        if (total >= 0 && downloaded != total) {
+            throw new IOException("Connection lost, the download will resume on retry");
+        }
+        String actualMd5 = Utils.toHex(md5.digest());
+        if (expectedMd5 != null && !expectedMd5.isEmpty() && !expectedMd5.equalsIgnoreCase(actualMd5)) {
+            mResumeStore.clear(key);
+            part.delete();
+            throw new IOException("Checksum mismatch, the download was discarded");
+        }
+        commitPartFile(part, file);
+        mResumeStore.clear(key);
+        return actualMd5;
     }
 
-    private void handleDownloadException(Exception e, File outputFile, MutableLiveData<DownloadProgress> liveData, boolean isBulk) {
-        if (e instanceof InterruptedException) {
+    /** A strong ETag, or else Last-Modified; weak ETags are not valid for If-Range. */
+    private static String validatorOf(Response response) {
+        String etag = response.header("ETag");
+        if (etag != null && !etag.startsWith("W/")) return etag;
+        return response.header("Last-Modified");
+    }
+
+    private static File partFileFor(File file) {
+        return new File(file.getPath() + ".part");
+    }
+
+    private static void commitPartFile(File part, File file) throws IOException {
+        // rename() replaces the target atomically on the same file system.
+        if (!part.renameTo(file)) {
+            throw new IOException("Could not move " + part.getName() + " into place");
+        }
+    }
+
+    /**
+     * Whether {@code e} ended the download because its thread was interrupted. A job
+     * interrupted inside a socket read gets okio's InterruptedIOException rather than
+     * InterruptedException; a read timeout is an InterruptedIOException too, but a real failure.
+     */
+    private static boolean isInterruption(Exception e) {
+        if (Thread.currentThread().isInterrupted() || e instanceof InterruptedException) return true;
+        return e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException);
+    }
+
+    private void handleDownloadException(Exception e, String key, boolean isBulk) {
+        boolean interrupted = isInterruption(e);
+        if (interrupted && mPausedKeys.remove(key)) {
+            // Stopped with the queue work; the row stays and the next run resumes the .part file.
+            Thread.currentThread().interrupt();
+            postProgress(key, DownloadState.QUEUED, 0, 0, "Paused");
+            return;
+        }
+        finishQueued(key);
+        if (interrupted) {
             Thread.currentThread().interrupt();
-            liveData.postValue(new DownloadProgress(DownloadState.NOT_DOWNLOADED, 0, 0, "Cancelled"));
+            postProgress(key, DownloadState.NOT_DOWNLOADED, 0, 0, "Cancelled");
         } else if (e instanceof FileSizeExceededException) {
             FileSizeExceededException fse = (FileSizeExceededException) e;
-            liveData.postValue(new DownloadProgress(DownloadState.SKIPPED, 0, fse.getFileSize(), e.getMessage()));
+            postProgress(key, DownloadState.SKIPPED, 0, fse.getFileSize(), e.getMessage());
         } else {
-            liveData.postValue(new DownloadProgress(DownloadState.FAILED, 0, 0, e.getMessage()));
+            postProgress(key, DownloadState.FAILED, 0, 0, e.getMessage());
         }
-        if (outputFile != null && outputFile.exists()) outputFile.delete();
+        // Any .part file is kept for the next attempt to resume.
         if (isBulk) incrementBulkProgress();
     }
     
-    private void unzip(File zip, File out) throws IOException {
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zip))) {
-            ZipEntry entry = zis.getNextEntry();
-            while (entry != null && entry.isDirectory()) entry = zis.getNextEntry();
-            if (entry == null) throw new IOException("Empty ZIP archive");
-            if(out.getParentFile() != null && !out.getParentFile().exists()) out.getParentFile().mkdirs();
-            try (FileOutputStream fos = new FileOutputStream(out)) {
-                byte[] buffer = new byte[4 * 1024];
-                int len; while ((len = zis.read(buffer)) > 0) fos.write(buffer, 0, len);
+    /**
+     * Inflates every entry of the archive in {@code in} into {@code dir}. Progress
+     * counts compressed bytes against {@code total}.
+     *
+     * @return the MD5 of each extracted file, keyed by entry name, in archive order
+     */
+    private Map<String, String> unzipStream(InputStream in, File dir, String key, long total) throws IOException, InterruptedException {
+        if (!dir.mkdirs() && !dir.isDirectory()) throw new IOException("Could not create " + dir);
+        String root = dir.getCanonicalPath() + File.separator;
+        Map<String, String> files = new LinkedHashMap<>();
+        CountingInputStream counted = new CountingInputStream(in);
+        long reportStep = total > 0 ? Math.max(total / 100, PROGRESS_MIN_STEP) : PROGRESS_MIN_STEP;
+        long reported = 0;
+        postProgress(key, DownloadState.DOWNLOADING, 0, total, null);
+
+        try (ZipInputStream zis = new ZipInputStream(counted)) {
+            byte[] buffer = new byte[8 * 1024];
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                File target = new File(dir, entry.getName());
+                if (!target.getCanonicalPath().startsWith(root)) {
+                    throw new IOException("Bad entry in ZIP archive: " + entry.getName());
+                }
+                if (entry.isDirectory()) {
+                    target.mkdirs();
+                    continue;
+                }
+                File parent = target.getParentFile();
+                if (parent != null && !parent.isDirectory()) parent.mkdirs();
+                MessageDigest md5 = Utils.newMd5();
+                try (FileOutputStream fos = new FileOutputStream(target)) {
+                    int len;
+                    while ((len = zis.read(buffer)) > 0) {
+                        if (Thread.currentThread().isInterrupted()) throw new InterruptedException("Download cancelled");
+                        fos.write(buffer, 0, len);
+                        md5.update(buffer, 0, len);
+                        if (counted.getCount() - reported >= reportStep) {
+                            reported = counted.getCount();
+                            postProgress(key, DownloadState.DOWNLOADING, reported, total, null);
+                        }
+                    }
+                    fos.getFD().sync();
+                }
+                zis.closeEntry();
+                files.put(entry.getName(), Utils.toHex(md5.digest()));
             }
-            zis.closeEntry();
         }
+        if (files.isEmpty()) throw new IOException("Empty ZIP archive");
+        return files;
+    }
+
+    /** Counts the bytes read through it, i.e. the compressed size for a ZIP body. */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) mCount += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+
+    private static boolean deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        return file.delete();
     }
 
     public void cancelDownload(Item attachment) {
-        Future<?> future = mTaskMap.get(attachment.key);
-        if (future != null) future.cancel(true);
+        if (!mScheduler.isScheduled(attachment.key)) {
+            // Still waiting in the queue; its turn will be skipped.
+            DownloadProgress progress = mProgressHub.get(attachment.key);
+            if (progress != null && progress.state == DownloadState.QUEUED) {
+                postProgress(attachment.key, DownloadState.NOT_DOWNLOADED, 0, 0, "Cancelled");
+            }
+            finishQueued(attachment.key);
+            return;
+        }
+        mScheduler.cancel(attachment.key);
     }
 
     public void cancelAllDownloads() {
-        for (Future<?> future : mTaskMap.values()) future.cancel(true);
-        mTaskMap.clear();
-        mBulkTotal.set(0);
-        mBulkDownloaded.set(0);
-        mGlobalProgress.postValue(new GlobalDownloadProgress(false, 0, 0));
+        Item waiting;
+        while ((waiting = mBulkQueue.poll()) != null) {
+            postProgress(waiting.key, DownloadState.NOT_DOWNLOADED, 0, 0, "Cancelled");
+        }
+        AppExecutors.getInstance().diskWrite().execute(() -> {
+            synchronized (mQueueLock) {
+                mQueueDao.clearTable();
+                mActiveKeys.clear();
+                mBulkQueue.clear();
+            }
+            WorkManager.getInstance(mContext).cancelUniqueWork(QUEUE_WORK_NAME);
+        });
+        mScheduler.cancelAll();
+        resetBulkProgress();
     }
 
     public void deleteFile(Item attachment) {
         File file = getLocalFileForItem(attachment.filename, attachment.key);
-        if (file.exists() && file.delete()) {
-            ((MutableLiveData<DownloadProgress>) getDownloadProgress(attachment.key, attachment.filename)).postValue(new DownloadProgress(DownloadState.NOT_DOWNLOADED, 0, 0, null));
+        partFileFor(file).delete();
+        mResumeStore.clear(attachment.key);
+        File snapshotDir = new File(getAttachmentsDir(), attachment.key);
+        boolean deleted = snapshotDir.isDirectory() ? deleteRecursively(snapshotDir) : file.exists() && file.delete();
+        if (deleted) {
+            postProgress(attachment.key, DownloadState.NOT_DOWNLOADED, 0, 0, null);
+            AppExecutors.getInstance().diskWrite().execute(() -> mItemDao.updateLocalMd5(attachment.key, null));
         }
     }
 
     public File getLocalFileForItem(String filename, String itemKey) {
-        File downloadsDir = new File(mContext.getExternalFilesDir(null), "attachments");
-        if (!downloadsDir.exists()) downloadsDir.mkdirs();
+        File downloadsDir = getAttachmentsDir();
         String effectiveFilename = (filename != null && !filename.isEmpty()) ? filename : itemKey;
+        // Multi-file WebDAV snapshots are unpacked into a directory named after the item.
+        File snapshotDir = new File(downloadsDir, itemKey);
+        if (snapshotDir.isDirectory()) return new File(snapshotDir, effectiveFilename);
         return new File(downloadsDir, effectiveFilename);
     }
+
+    private File getAttachmentsDir() {
+        File downloadsDir = new File(mContext.getExternalFilesDir(null), "attachments");
+        if (!downloadsDir.exists()) downloadsDir.mkdirs();
+        return downloadsDir;
+    }
 }
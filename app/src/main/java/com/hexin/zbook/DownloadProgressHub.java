@@ -0,0 +1,166 @@
+package com.hexin.zbook;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Download state of every attachment the UI has looked at, in parallel primitive
+ * arrays indexed by a slot per item key. Download threads write into the table as
+ * often as they like; observers get one batch of the keys that changed at most
+ * every {@link #PUBLISH_INTERVAL_MS}. Entries that are idle (not queued or
+ * downloading) and untouched for {@link #IDLE_EVICT_MS} are evicted, since their
+ * state can be read back from disk.
+ */
+public class DownloadProgressHub {
+
+    static final long PUBLISH_INTERVAL_MS = 100;
+    private static final long IDLE_EVICT_MS = 60_000;
+    // Evicting is only worth a sweep once the table has grown past this.
+    private static final int EVICT_THRESHOLD = 256;
+
+    private static final DownloadManager.DownloadState[] STATES = DownloadManager.DownloadState.values();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mPublish = this::publish;
+    private final MutableLiveData<Map<String, DownloadManager.DownloadProgress>> mUpdates = new MutableLiveData<>();
+
+    // Guarded by this
+    private final Map<String, Integer> mSlots = new HashMap<>();
+    private String[] mKeys = new String[64];
+    private byte[] mStates = new byte[64];
+    private long[] mBytes = new long[64];
+    private long[] mTotals = new long[64];
+    private long[] mLastTouched = new long[64];
+    private boolean[] mDirty = new boolean[64];
+    private final Map<String, String> mErrors = new HashMap<>();
+    private int mSlotCount;
+    private int mDirtyCount;
+    private boolean mPublishScheduled;
+
+    /**
+     * Batches of changed entries, delivered on the main thread.
+     */
+    public LiveData<Map<String, DownloadManager.DownloadProgress>> getUpdates() {
+        return mUpdates;
+    }
+
+    /** The current state of {@code key}, or null if the hub has no entry for it. */
+    public synchronized DownloadManager.DownloadProgress get(String key) {
+        Integer slot = mSlots.get(key);
+        if (slot == null) return null;
+        mLastTouched[slot] = SystemClock.uptimeMillis();
+        return snapshot(slot);
+    }
+
+    /** Records a state read from disk without notifying anyone. */
+    public synchronized void seed(String key, DownloadManager.DownloadState state, long bytes, long total) {
+        int slot = slotFor(key);
+        write(slot, key, state, bytes, total, null);
+    }
+
+    /** Records a new state; observers see it with the next batch. Safe to call from any thread. */
+    public void update(String key, DownloadManager.DownloadState state, long bytes, long total, String error) {
+        boolean schedule;
+        synchronized (this) {
+            int slot = slotFor(key);
+            write(slot, key, state, bytes, total, error);
+            if (!mDirty[slot]) {
+                mDirty[slot] = true;
+                mDirtyCount++;
+            }
+            schedule = !mPublishScheduled;
+            mPublishScheduled = true;
+        }
+        if (schedule) {
+            mMainHandler.postDelayed(mPublish, PUBLISH_INTERVAL_MS);
+        }
+    }
+
+    private void write(int slot, String key, DownloadManager.DownloadState state, long bytes, long total, String error) {
+        mStates[slot] = (byte) state.ordinal();
+        mBytes[slot] = bytes;
+        mTotals[slot] = total;
+        mLastTouched[slot] = SystemClock.uptimeMillis();
+        if (error != null) {
+            mErrors.put(key, error);
+        } else {
+            mErrors.remove(key);
+        }
+    }
+
+    private void publish() {
+        Map<String, DownloadManager.DownloadProgress> batch;
+        synchronized (this) {
+            mPublishScheduled = false;
+            batch = new HashMap<>(mDirtyCount * 2);
+            for (int slot = 0; slot < mSlotCount && batch.size() < mDirtyCount; slot++) {
+                if (mDirty[slot]) {
+                    mDirty[slot] = false;
+                    batch.put(mKeys[slot], snapshot(slot));
+                }
+            }
+            mDirtyCount = 0;
+            if (mSlotCount > EVICT_THRESHOLD) evictIdle();
+        }
+        if (!batch.isEmpty()) mUpdates.setValue(batch);
+    }
+
+    private DownloadManager.DownloadProgress snapshot(int slot) {
+        return new DownloadManager.DownloadProgress(STATES[mStates[slot]], mBytes[slot], mTotals[slot], mErrors.get(mKeys[slot]));
+    }
+
+    private int slotFor(String key) {
+        Integer slot = mSlots.get(key);
+        if (slot != null) return slot;
+        if (mSlotCount == mKeys.length) grow();
+        int newSlot = mSlotCount++;
+        mKeys[newSlot] = key;
+        mSlots.put(key, newSlot);
+        return newSlot;
+    }
+
+    private void grow() {
+        int capacity = mKeys.length * 2;
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mStates = Arrays.copyOf(mStates, capacity);
+        mBytes = Arrays.copyOf(mBytes, capacity);
+        mTotals = Arrays.copyOf(mTotals, capacity);
+        mLastTouched = Arrays.copyOf(mLastTouched, capacity);
+        mDirty = Arrays.copyOf(mDirty, capacity);
+    }
+
+    /** Compacts the table, dropping idle entries nobody has touched for a while. */
+    private void evictIdle() {
+        long cutoff = SystemClock.uptimeMillis() - IDLE_EVICT_MS;
+        int kept = 0;
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            DownloadManager.DownloadState state = STATES[mStates[slot]];
+            boolean active = state == DownloadManager.DownloadState.QUEUED || state == DownloadManager.DownloadState.DOWNLOADING;
+            if (!active && !mDirty[slot] && mLastTouched[slot] < cutoff) {
+                mSlots.remove(mKeys[slot]);
+                mErrors.remove(mKeys[slot]);
+                continue;
+            }
+            if (kept != slot) {
+                mKeys[kept] = mKeys[slot];
+                mStates[kept] = mStates[slot];
+                mBytes[kept] = mBytes[slot];
+                mTotals[kept] = mTotals[slot];
+                mLastTouched[kept] = mLastTouched[slot];
+                mDirty[kept] = mDirty[slot];
+                mSlots.put(mKeys[kept], kept);
+            }
+            kept++;
+        }
+        Arrays.fill(mKeys, kept, mSlotCount, null);
+        mSlotCount = kept;
+    }
+}
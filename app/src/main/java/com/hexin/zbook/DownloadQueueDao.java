@@ -0,0 +1,31 @@
+package com.hexin.zbook;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface DownloadQueueDao {
+
+    // A key that is already queued keeps its place.
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertAll(List<QueuedDownload> rows);
+
+    @Query("SELECT * FROM download_queue ORDER BY enqueuedAt, itemKey")
+    List<QueuedDownload> getAll();
+
+    @Query("SELECT itemKey FROM download_queue")
+    List<String> getKeys();
+
+    @Query("SELECT COUNT(*) FROM download_queue")
+    int count();
+
+    @Query("DELETE FROM download_queue WHERE itemKey = :itemKey")
+    void delete(String itemKey);
+
+    @Query("DELETE FROM download_queue")
+    void clearTable();
+}
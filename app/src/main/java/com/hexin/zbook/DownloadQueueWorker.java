@@ -0,0 +1,79 @@
+package com.hexin.zbook;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.core.app.NotificationCompat;
+import androidx.work.ForegroundInfo;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+/**
+ * Keeps the app working through the persistent download queue, within the network
+ * and charging constraints from the settings. It runs as a foreground worker, so a
+ * long "download all" isn't cut off by the ten-minute limit of ordinary work.
+ * WorkManager starts it again after the process was killed or once its constraints
+ * are met again; interrupted files continue from their .part files.
+ */
+public class DownloadQueueWorker extends Worker {
+
+    private static final String CHANNEL_ID = "downloads";
+    private static final int NOTIFICATION_ID = 1001;
+    // Only a safety net; finished and newly queued downloads wake the worker right away.
+    private static final long MAX_WAIT_MS = 30_000;
+
+    public DownloadQueueWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        // If Android refuses (e.g. the app is in the background on Android 12+), the
+        // work still runs, just under the normal time limit.
+        setForegroundAsync(createForegroundInfo());
+
+        DownloadManager manager = DownloadManager.getInstance(getApplicationContext());
+        manager.onQueueWorkStarted();
+        while (!isStopped()) {
+            // Also picks up downloads queued while this worker was running.
+            manager.resumeQueue();
+            if (!manager.hasQueuedDownloads()) return Result.success();
+            try {
+                manager.awaitQueueChange(MAX_WAIT_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        // WorkManager runs the work again once its constraints are met.
+        return Result.retry();
+    }
+
+    @Override
+    public void onStopped() {
+        DownloadManager.getInstance(getApplicationContext()).pauseQueue();
+    }
+
+    private ForegroundInfo createForegroundInfo() {
+        Context context = getApplicationContext();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Downloads", NotificationManager.IMPORTANCE_LOW);
+            context.getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        Notification notification = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle("Downloading attachments")
+                .setOngoing(true)
+                .setSilent(true)
+                .build();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new ForegroundInfo(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        }
+        return new ForegroundInfo(NOTIFICATION_ID, notification);
+    }
+}
@@ -0,0 +1,95 @@
+package com.hexin.zbook;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Remembers how far each interrupted download got, so the next attempt can continue
+ * its {@code .part} file with a Range request instead of starting from byte 0.
+ * Only offsets that were synced to disk are recorded.
+ */
+public class DownloadResumeStore {
+
+    private static final String PREFS_NAME = "DownloadResumePrefs";
+    private static final String SUFFIX_URL = ".url";
+    private static final String SUFFIX_VALIDATOR = ".validator";
+    private static final String SUFFIX_TOTAL = ".total";
+    private static final String SUFFIX_OFFSET = ".offset";
+
+    private final SharedPreferences mPrefs;
+
+    public DownloadResumeStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Starts a fresh download of {@code url}. Without a validator (a strong ETag or a
+     * Last-Modified date) the server cannot confirm a later Range request refers to
+     * the same file, so nothing is recorded and the download is not resumable.
+     */
+    public void begin(String key, String url, String validator, long total) {
+        if (validator == null) {
+            clear(key);
+            return;
+        }
+        mPrefs.edit()
+                .putString(key + SUFFIX_URL, url)
+                .putString(key + SUFFIX_VALIDATOR, validator)
+                .putLong(key + SUFFIX_TOTAL, total)
+                .putLong(key + SUFFIX_OFFSET, 0)
+                .apply();
+    }
+
+    public void setOffset(String key, long offset) {
+        if (mPrefs.contains(key + SUFFIX_VALIDATOR)) {
+            mPrefs.edit().putLong(key + SUFFIX_OFFSET, offset).apply();
+        }
+    }
+
+    public String getValidator(String key) {
+        return mPrefs.getString(key + SUFFIX_VALIDATOR, null);
+    }
+
+    public long getTotal(String key) {
+        return mPrefs.getLong(key + SUFFIX_TOTAL, -1);
+    }
+
+    /**
+     * Returns how many bytes of {@code part} can be kept for another download of
+     * {@code url}, cutting off anything written after the last recorded offset.
+     * Returns 0, and deletes the part file, when it cannot be resumed.
+     */
+    public long resumableOffset(String key, String url, File part) {
+        long offset = mPrefs.getLong(key + SUFFIX_OFFSET, 0);
+        boolean sameFile = url.equals(mPrefs.getString(key + SUFFIX_URL, null)) && getValidator(key) != null;
+        if (!sameFile || offset <= 0 || !part.isFile() || part.length() < offset) {
+            clear(key);
+            part.delete();
+            return 0;
+        }
+        if (part.length() > offset) {
+            // Bytes past the last sync may not have reached the disk intact.
+            try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                raf.setLength(offset);
+            } catch (IOException e) {
+                clear(key);
+                part.delete();
+                return 0;
+            }
+        }
+        return offset;
+    }
+
+    public void clear(String key) {
+        mPrefs.edit()
+                .remove(key + SUFFIX_URL)
+                .remove(key + SUFFIX_VALIDATOR)
+                .remove(key + SUFFIX_TOTAL)
+                .remove(key + SUFFIX_OFFSET)
+                .apply();
+    }
+}
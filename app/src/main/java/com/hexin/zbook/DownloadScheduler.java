@@ -0,0 +1,301 @@
+package com.hexin.zbook;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs downloads in priority lanes. A job starts only when a worker is free and its
+ * host is below its limit; the highest non-empty lane goes first. Bulk jobs are
+ * pulled one at a time from a {@link JobSource}, so a large "download all" never
+ * sits in front of a file the user just tapped.
+ */
+public class DownloadScheduler {
+
+    public enum Lane { INTERACTIVE, PREFETCH, BULK }
+
+    /** How many background jobs may run against a host right now. */
+    public interface HostLimits {
+        int limitFor(String host);
+    }
+
+    public static final class Job {
+        final String key;
+        final String host;
+        final Runnable work;
+        final Runnable onDropped;
+        Lane lane;
+        // Guarded by the scheduler.
+        boolean started;
+        // Guarded by the job itself.
+        private boolean mCancelled;
+        private Thread mThread;
+
+        /**
+         * @param onDropped called instead of {@code work} if the job is cancelled
+         *                  before it starts
+         */
+        public Job(String key, String host, Runnable work, Runnable onDropped) {
+            this.key = key;
+            this.host = host != null ? host : "";
+            this.work = work;
+            this.onDropped = onDropped;
+        }
+
+        synchronized void interrupt() {
+            mCancelled = true;
+            if (mThread != null) mThread.interrupt();
+        }
+
+        private synchronized boolean attach(Thread thread) {
+            mThread = thread;
+            return !mCancelled;
+        }
+    }
+
+    /** Produces bulk jobs on demand. */
+    public interface JobSource {
+        /** Returns the next job, or null once the source is exhausted. */
+        Job next();
+
+        /** Called when the source is dropped before being exhausted. */
+        void abandon();
+    }
+
+    private final HostLimits mHostLimits;
+    // Prefetch and bulk jobs leave one worker (and one connection per host) to interactive ones.
+    private final int mMaxRunning;
+    private final int mMaxBackgroundRunning;
+    private final ExecutorService mWorkers;
+    private final ArrayDeque<Job> mInteractive = new ArrayDeque<>();
+    private final ArrayDeque<Job> mPrefetch = new ArrayDeque<>();
+    private JobSource mBulkSource;
+    // A bulk job that was pulled but whose host was busy.
+    private Job mBulkHead;
+    // Queued and running jobs by key, so a key is never downloaded twice at once.
+    private final Map<String, Job> mJobs = new HashMap<>();
+    private final Map<String, Integer> mRunningPerHost = new HashMap<>();
+    private int mRunning;
+    private int mBackgroundRunning;
+
+    /** @param maxBackgroundRunning at most this many prefetch and bulk jobs run at once */
+    public DownloadScheduler(HostLimits hostLimits, int maxBackgroundRunning) {
+        mHostLimits = hostLimits;
+        mMaxBackgroundRunning = maxBackgroundRunning;
+        mMaxRunning = maxBackgroundRunning + 1;
+        mWorkers = Executors.newFixedThreadPool(mMaxRunning);
+    }
+
+    /**
+     * Queues {@code job} in {@code lane}. If the key is already queued in a lower
+     * lane it moves up instead; if it is already running nothing happens.
+     */
+    public synchronized void submit(Job job, Lane lane) {
+        Job existing = mJobs.get(job.key);
+        if (existing != null) {
+            if (!existing.started && lane.ordinal() < existing.lane.ordinal()) {
+                removeQueued(existing);
+                enqueue(existing, lane);
+                pump();
+            }
+            return;
+        }
+        mJobs.put(job.key, job);
+        enqueue(job, lane);
+        pump();
+    }
+
+    /**
+     * Replaces any current bulk source with {@code source}. Submitting the current
+     * source again just pulls from it, e.g. after it was given more work.
+     */
+    public synchronized void submitBulk(JobSource source) {
+        if (mBulkSource != null && mBulkSource != source) mBulkSource.abandon();
+        mBulkSource = source;
+        pump();
+    }
+
+    /** Starts waiting jobs after a host limit went up. */
+    public synchronized void poke() {
+        pump();
+    }
+
+    public synchronized boolean isScheduled(String key) {
+        return mJobs.containsKey(key);
+    }
+
+    /** Keys of the queued and running prefetch and bulk jobs. */
+    public synchronized List<String> backgroundKeys() {
+        List<String> keys = new ArrayList<>();
+        for (Job job : mJobs.values()) {
+            if (job.lane != Lane.INTERACTIVE) keys.add(job.key);
+        }
+        return keys;
+    }
+
+    /** Drops the job for {@code key} if it is queued, or interrupts it if it is running. */
+    public void cancel(String key) {
+        Job dropped = null;
+        synchronized (this) {
+            Job job = mJobs.get(key);
+            if (job == null) return;
+            if (job.started) {
+                job.interrupt();
+            } else {
+                removeQueued(job);
+                mJobs.remove(key);
+                dropped = job;
+            }
+        }
+        if (dropped != null) dropped.onDropped.run();
+    }
+
+    public void cancelAll() {
+        List<Job> dropped = new ArrayList<>();
+        JobSource source;
+        synchronized (this) {
+            dropped.addAll(mInteractive);
+            dropped.addAll(mPrefetch);
+            if (mBulkHead != null) dropped.add(mBulkHead);
+            mInteractive.clear();
+            mPrefetch.clear();
+            mBulkHead = null;
+            source = mBulkSource;
+            mBulkSource = null;
+            for (Job job : dropped) mJobs.remove(job.key);
+            for (Job job : mJobs.values()) job.interrupt();
+        }
+        for (Job job : dropped) job.onDropped.run();
+        if (source != null) source.abandon();
+    }
+
+    /** Like {@link #cancelAll()}, but leaves interactive jobs queued and running. */
+    public void cancelBackground() {
+        List<Job> dropped = new ArrayList<>();
+        JobSource source;
+        synchronized (this) {
+            dropped.addAll(mPrefetch);
+            if (mBulkHead != null) dropped.add(mBulkHead);
+            mPrefetch.clear();
+            mBulkHead = null;
+            source = mBulkSource;
+            mBulkSource = null;
+            for (Job job : dropped) mJobs.remove(job.key);
+            for (Job job : mJobs.values()) {
+                if (job.lane != Lane.INTERACTIVE) job.interrupt();
+            }
+        }
+        for (Job job : dropped) job.onDropped.run();
+        if (source != null) source.abandon();
+    }
+
+    private void enqueue(Job job, Lane lane) {
+        job.lane = lane;
+        if (lane == Lane.INTERACTIVE) {
+            mInteractive.addLast(job);
+        } else {
+            // A bulk job submitted on its own waits behind the prefetches.
+            mPrefetch.addLast(job);
+        }
+    }
+
+    private void removeQueued(Job job) {
+        if (job == mBulkHead) {
+            mBulkHead = null;
+        } else {
+            mInteractive.remove(job);
+            mPrefetch.remove(job);
+        }
+    }
+
+    /** Starts as many queued jobs as the limits allow. Must hold the lock. */
+    private void pump() {
+        while (mRunning < mMaxRunning) {
+            Job job = takeStartable(mInteractive, false);
+            if (job == null && mBackgroundRunning < mMaxBackgroundRunning) {
+                job = takeStartable(mPrefetch, true);
+                if (job == null) job = takeBulk();
+            }
+            if (job == null) return;
+            start(job);
+        }
+    }
+
+    private Job takeStartable(ArrayDeque<Job> queue, boolean background) {
+        for (Iterator<Job> it = queue.iterator(); it.hasNext(); ) {
+            Job job = it.next();
+            if (hostHasRoom(job.host, background)) {
+                it.remove();
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private Job takeBulk() {
+        while (mBulkHead == null && mBulkSource != null) {
+            Job next = mBulkSource.next();
+            if (next == null) {
+                mBulkSource = null;
+            } else if (!mJobs.containsKey(next.key)) {
+                next.lane = Lane.BULK;
+                mJobs.put(next.key, next);
+                mBulkHead = next;
+            }
+        }
+        // Bulk jobs start in order, so a busy host holds back the rest of the lane.
+        if (mBulkHead != null && hostHasRoom(mBulkHead.host, true)) {
+            Job job = mBulkHead;
+            mBulkHead = null;
+            return job;
+        }
+        return null;
+    }
+
+    private boolean hostHasRoom(String host, boolean background) {
+        Integer running = mRunningPerHost.get(host);
+        int limit = mHostLimits.limitFor(host);
+        if (!background) limit++;
+        return running == null || running < limit;
+    }
+
+    private void start(Job job) {
+        job.started = true;
+        mRunning++;
+        if (job.lane != Lane.INTERACTIVE) mBackgroundRunning++;
+        Integer running = mRunningPerHost.get(job.host);
+        mRunningPerHost.put(job.host, running == null ? 1 : running + 1);
+        mWorkers.execute(() -> {
+            try {
+                if (job.attach(Thread.currentThread())) {
+                    job.work.run();
+                } else {
+                    job.onDropped.run();
+                }
+            } finally {
+                job.attach(null);
+                // Don't leak a late interrupt into the next job on this thread.
+                Thread.interrupted();
+                finished(job);
+            }
+        });
+    }
+
+    private synchronized void finished(Job job) {
+        mJobs.remove(job.key);
+        mRunning--;
+        if (job.lane != Lane.INTERACTIVE) mBackgroundRunning--;
+        int running = mRunningPerHost.get(job.host) - 1;
+        if (running == 0) {
+            mRunningPerHost.remove(job.host);
+        } else {
+            mRunningPerHost.put(job.host, running);
+        }
+        pump();
+    }
+}
@@ -4,18 +4,23 @@ import android.app.Application;
 
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
 
 public class DownloadViewModel extends AndroidViewModel {
 
     private final DownloadManager mDownloadManager;
     private final SyncRepository mRepository;
     private final LiveData<List<Item>> mAllAttachments;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(); // <---
+    private final MutableLiveData<String> mSearchQuery = new MutableLiveData<>();
+    private final LiveData<Set<String>> mSearchMatches;
     private final ItemDao mItemDao;
+    private final MutableLiveData<Event<String>> mRefreshResult = new MutableLiveData<>();
     public DownloadViewModel(Application application) {
         super(application);
         AppDatabase db = AppDatabase.getDatabase(application);
@@ -24,6 +29,27 @@ public class DownloadViewModel extends AndroidViewModel {
         mRepository = new SyncRepository(application);
         // This needs to fetch the complete Item object, including filesize
         mAllAttachments = mRepository.getAttachments();
+        // Fills in the sizes of WebDAV attachments, which the sync doesn't report.
+        mDownloadManager.refreshWebDavIndex();
+        // null means "no filter"; otherwise the keys of all items matching the query.
+        mSearchMatches = Transformations.switchMap(mSearchQuery, query -> {
+            String match = ItemQueries.matchExpression(query);
+            if (match == null) {
+                return new MutableLiveData<>(null);
+            }
+            return Transformations.map(mItemDao.searchKeys(match), keys -> new HashSet<>(keys));
+        });
+    }
+
+    public LiveData<Set<String>> getSearchMatches() {
+        return mSearchMatches;
+    }
+
+    public void setSearchQuery(String query) {
+        String value = query != null ? query.trim() : "";
+        if (!value.equals(mSearchQuery.getValue())) {
+            mSearchQuery.setValue(value);
+        }
     }
 
     public LiveData<List<Item>> getAllAttachments() {
@@ -42,11 +68,34 @@ public class DownloadViewModel extends AndroidViewModel {
         mDownloadManager.cancelAllDownloads();
     }
 
+    public LiveData<Event<String>> getRefreshResult() {
+        return mRefreshResult;
+    }
+
+    /** Re-downloads only the attachments that changed on the server since they were downloaded. */
+    public void refreshStaleAttachments(List<Item> attachments) {
+        // Local copies without a recorded checksum are hashed, which reads the whole file.
+        List<Item> snapshot = new ArrayList<>(attachments);
+        AppExecutors.getInstance().diskRead().execute(() -> {
+            int queued = mDownloadManager.refreshStaleAttachments(snapshot);
+            String message;
+            if (queued > 0) {
+                message = "Refreshing " + queued + " changed files.";
+            } else if (mDownloadManager.hasUncheckedCopies(snapshot)) {
+                // Without a checksum a copy would wrongly count as up to date.
+                message = "Some files can't be checked until the library has synced.";
+            } else {
+                message = "All downloaded files are up to date.";
+            }
+            mRefreshResult.postValue(new Event<>(message));
+        });
+    }
+
 
 
     public void addRecentItem(String itemKey) {
         // 为了避免阻塞主线程，我们在一个后台线程中执行数据库的写入操作
-        executor.execute(() -> {
+        AppExecutors.getInstance().diskWrite().execute(() -> {
             mItemDao.updateLastOpenedTimestamp(itemKey, System.currentTimeMillis());
         });
     }
@@ -8,8 +8,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 public class FileDownloader {
 
@@ -38,21 +40,19 @@ public class FileDownloader {
             File cacheDir = mContext.getCacheDir();
             File file = new File(cacheDir, fileName);
 
-            try {
-                URL url = new URL(fileUrl);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.connect();
-
-                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                    Log.e("FileDownloader", "Server returned HTTP " + connection.getResponseCode()
-                            + " " + connection.getResponseMessage());
+            Request request = new Request.Builder().url(fileUrl).build();
+            try (Response response = HttpClients.transfer().newCall(request).execute()) {
+                ResponseBody body = response.body();
+                if (!response.isSuccessful() || body == null) {
+                    Log.e("FileDownloader", "Server returned HTTP " + response.code()
+                            + " " + response.message());
                     return null;
                 }
 
-                try (InputStream input = connection.getInputStream();
+                try (InputStream input = body.byteStream();
                      FileOutputStream output = new FileOutputStream(file)) {
 
-                    byte[] data = new byte[4096];
+                    byte[] data = new byte[8192];
                     int count;
                     while ((count = input.read(data)) != -1) {
                         output.write(data, 0, count);
@@ -60,7 +60,7 @@ public class FileDownloader {
                 }
                 return file;
 
-            } catch (IOException e) {
+            } catch (IOException | IllegalArgumentException e) {
                 Log.e("FileDownloader", "Error downloading file", e);
                 return null;
             }
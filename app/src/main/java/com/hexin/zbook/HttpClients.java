@@ -0,0 +1,75 @@
+package com.hexin.zbook;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.logging.HttpLoggingInterceptor;
+
+/**
+ * The app's HTTP clients. Both profiles are derived from one base client, so they
+ * share its connection pool: connections (and HTTP/2 sessions) to the Zotero API
+ * and the WebDAV server are reused across syncs, downloads and connection tests
+ * instead of being set up again by every caller. Almost every call is a blocking
+ * execute(), which the dispatcher's request limits don't apply to; download
+ * concurrency per host is limited by {@link DownloadScheduler} instead.
+ */
+public final class HttpClients {
+
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static volatile OkHttpClient sApi;
+    private static volatile OkHttpClient sTransfer;
+
+    private static final OkHttpClient BASE;
+
+    static {
+        BASE = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .build();
+    }
+
+    private HttpClients() {
+    }
+
+    /** Short JSON requests: tight timeouts, bodies logged in debug builds. */
+    public static OkHttpClient api() {
+        if (sApi == null) {
+            synchronized (HttpClients.class) {
+                if (sApi == null) {
+                    OkHttpClient.Builder builder = BASE.newBuilder()
+                            .connectTimeout(15, TimeUnit.SECONDS)
+                            .readTimeout(30, TimeUnit.SECONDS)
+                            .writeTimeout(30, TimeUnit.SECONDS);
+                    if (BuildConfig.DEBUG) {
+                        HttpLoggingInterceptor logging = new HttpLoggingInterceptor();
+                        logging.setLevel(HttpLoggingInterceptor.Level.BODY);
+                        builder.addInterceptor(logging);
+                    }
+                    sApi = builder.build();
+                }
+            }
+        }
+        return sApi;
+    }
+
+    /**
+     * Attachment downloads: a long read timeout for slow mobile links and no body
+     * logging, which would buffer whole files in memory.
+     */
+    public static OkHttpClient transfer() {
+        if (sTransfer == null) {
+            synchronized (HttpClients.class) {
+                if (sTransfer == null) {
+                    sTransfer = BASE.newBuilder()
+                            .connectTimeout(15, TimeUnit.SECONDS)
+                            .readTimeout(60, TimeUnit.SECONDS)
+                            .writeTimeout(60, TimeUnit.SECONDS)
+                            .build();
+                }
+            }
+        }
+        return sTransfer;
+    }
+}
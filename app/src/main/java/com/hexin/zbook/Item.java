@@ -2,10 +2,15 @@ package com.hexin.zbook;
 
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 import androidx.annotation.NonNull;
 
-@Entity(tableName = "items")
+@Entity(tableName = "items",
+        indices = {@Index("parentItem"), @Index("itemType"), @Index("lastOpenedTimestamp"),
+                @Index({"sortTitle", "key"}), @Index({"sortCreator", "key"}),
+                @Index({"sortYear", "publicationDate", "key"}), @Index({"dateAddedEpoch", "key"}),
+                @Index({"filesize", "key"}), @Index("titlePinyin"), @Index("titlePinyinFull")})
 public class Item {
 
     @PrimaryKey
@@ -43,8 +48,23 @@ public class Item {
 
     @ColumnInfo(name = "filesize")
     public long filesize;
-    // 这个字段将不会被 Room 存入数据库
-    public transient String titlePinyin;
+
+    // Checksum and modification time (epoch ms) of the stored file, as reported by the server
+    @ColumnInfo(name = "md5")
+    public String md5;
+
+    @ColumnInfo(name = "mtime", defaultValue = "0")
+    public long mtime;
+
+    // MD5 of the downloaded copy; local-only, null if there is none or it was never hashed
+    @ColumnInfo(name = "localMd5")
+    public String localMd5;
+    // 拼音首字母和全拼，同步时计算一次并保存（附件取文件名）
+    @ColumnInfo(name = "titlePinyin")
+    public String titlePinyin;
+
+    @ColumnInfo(name = "titlePinyinFull")
+    public String titlePinyinFull;
     
     @ColumnInfo(name = "creators")
     public String creators;
@@ -56,6 +76,19 @@ public class Item {
     @ColumnInfo(name = "lastOpenedTimestamp", defaultValue = "0")
     public long lastOpenedTimestamp;
 
+    // Sort keys, computed once at sync time by SortKeys.apply()
+    @ColumnInfo(name = "sortTitle")
+    public String sortTitle;
+
+    @ColumnInfo(name = "sortCreator")
+    public String sortCreator;
+
+    @ColumnInfo(name = "sortYear", defaultValue = "0")
+    public int sortYear;
+
+    @ColumnInfo(name = "dateAddedEpoch", defaultValue = "0")
+    public long dateAddedEpoch;
+
  
     // ... 其他字段
     // Transient field to indicate if the item is trashed, not stored in the DB.
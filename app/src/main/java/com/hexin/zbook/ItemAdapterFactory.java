@@ -0,0 +1,31 @@
+package com.hexin.zbook;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+import java.util.List;
+
+/**
+ * Installs the streaming readers for {@link Item} and {@code List<Item>}. Writing is
+ * left to the adapters Gson would otherwise use, so {@code toJson} still works.
+ */
+public class ItemAdapterFactory implements TypeAdapterFactory {
+
+    private static final TypeToken<List<Item>> ITEM_LIST_TYPE = new TypeToken<List<Item>>() {};
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        if (type.getRawType() == Item.class) {
+            return (TypeAdapter<T>) new ItemTypeAdapter(gson.getDelegateAdapter(this, TypeToken.get(Item.class)));
+        }
+        if (ITEM_LIST_TYPE.equals(type)) {
+            // The list delegate writes its elements through gson.getAdapter(Item.class), i.e. the adapter above.
+            ItemTypeAdapter itemAdapter = (ItemTypeAdapter) gson.getAdapter(Item.class);
+            return (TypeAdapter<T>) new ItemListTypeAdapter(itemAdapter, gson.getDelegateAdapter(this, ITEM_LIST_TYPE));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,45 @@
+package com.hexin.zbook;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One row per (item, collection) membership. Items can live in several collections,
+ * which used to be stored only as the comma-joined {@link Item#collectionKey}.
+ */
+@Entity(tableName = "item_collections",
+        primaryKeys = {"itemKey", "collectionKey"},
+        indices = {@Index("collectionKey")})
+public class ItemCollection {
+
+    @NonNull
+    @ColumnInfo(name = "itemKey")
+    public String itemKey;
+
+    @NonNull
+    @ColumnInfo(name = "collectionKey")
+    public String collectionKey;
+
+    public ItemCollection(@NonNull String itemKey, @NonNull String collectionKey) {
+        this.itemKey = itemKey;
+        this.collectionKey = collectionKey;
+    }
+
+    static List<ItemCollection> fromItems(List<Item> items) {
+        List<ItemCollection> links = new ArrayList<>();
+        for (Item item : items) {
+            if (item.collectionKey == null || item.collectionKey.isEmpty()) continue;
+            for (String collectionKey : item.collectionKey.split(",")) {
+                if (!collectionKey.isEmpty()) {
+                    links.add(new ItemCollection(item.key, collectionKey));
+                }
+            }
+        }
+        return links;
+    }
+}
@@ -0,0 +1,6 @@
+package com.hexin.zbook;
+
+public class ItemCounts {
+    public int total;
+    public int attachments;
+}
@@ -1,34 +1,103 @@
 package com.hexin.zbook;
 
 import androidx.lifecycle.LiveData;
+import androidx.paging.PagingSource;
 import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
-
+import androidx.room.RawQuery;
+import androidx.room.Transaction;
+import androidx.room.Update;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Dao
 public interface ItemDao {
 
+    // Returns the rowids, which key the items_fts rows.
     @Insert(onConflict = OnConflictStrategy.REPLACE)
-    void insertAll(List<Item> items);
+    long[] insertAll(List<Item> items);
+
+    // UPDATE rather than REPLACE: the row is not deleted and reinserted.
+    @Update
+    void updateAll(List<Item> items);
 
     @Query("SELECT * FROM items")
     LiveData<List<Item>> getAll();
 
+    /**
+     * Paged source for the "All Items" list, see {@link ItemQueries#allItems}.
+     */
+    @RawQuery(observedEntities = {Item.class, ItemFts.class})
+    PagingSource<Integer, Item> getItemsPaged(SupportSQLiteQuery query);
+
+    @Query("SELECT COUNT(*) AS total, IFNULL(SUM(itemType = 'attachment'), 0) AS attachments FROM items")
+    LiveData<ItemCounts> getItemCounts();
+
+    /**
+     * Library-wide search. {@code match} comes from {@link ItemQueries#matchExpression};
+     * titles starting with the query rank first, then recently opened items.
+     */
+    @Query("SELECT items.* FROM items_fts INNER JOIN items ON items.`key` = items_fts.itemKey"
+            + " WHERE items_fts MATCH :match"
+            + " ORDER BY (items.sortTitle LIKE :titlePrefix ESCAPE '\\') DESC, items.lastOpenedTimestamp DESC, items.sortTitle, items.`key`"
+            + " LIMIT :limit")
+    LiveData<List<Item>> search(String match, String titlePrefix, int limit);
+
+    @Query("SELECT itemKey FROM items_fts WHERE items_fts MATCH :match")
+    LiveData<List<String>> searchKeys(String match);
+
+    @Insert
+    void insertFts(List<ItemFts> rows);
+
+    // By docid: itemKey is not indexed, filtering on it would scan the whole table.
+    // Call it before the items themselves are deleted.
+    @Query("DELETE FROM items_fts WHERE docid IN (SELECT rowid FROM items WHERE `key` IN (:itemKeys))")
+    void deleteFts(List<String> itemKeys);
+
+    @Query("DELETE FROM items_fts")
+    void clearFts();
+
     @Query("SELECT * FROM items WHERE itemType = 'attachment'")
     LiveData<List<Item>> getAttachments();
 
-    @Query("SELECT collectionKey, COUNT(*) as count FROM items WHERE collectionKey IS NOT NULL AND collectionKey != '' GROUP BY collectionKey")
+    /** Attachments stored before checksums were synced, see {@link AppDatabase#MIGRATION_15_16}. */
+    @Query("SELECT EXISTS(SELECT 1 FROM items WHERE itemType = 'attachment' AND version = 0)")
+    boolean hasAttachmentsWithoutChecksums();
+
+    @Query("SELECT collectionKey, COUNT(*) as count FROM item_collections GROUP BY collectionKey")
     LiveData<List<CollectionCount>> getCollectionCounts();
 
+    @Query("SELECT * FROM items WHERE `key` IN (:keys)")
+    List<Item> getItemsByKeys(List<String> keys);
+
     @Query("SELECT * FROM items WHERE parentItem = :parentKey")
     List<Item> getChildren(String parentKey);
 
-    @Query("SELECT * FROM items WHERE ',' || collectionKey || ',' LIKE '%,' || :collectionKey || ',%'")
+    @Query("SELECT items.* FROM items INNER JOIN item_collections ON item_collections.itemKey = items.`key` WHERE item_collections.collectionKey = :collectionKey")
     List<Item> getItemsByCollection(String collectionKey);
 
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertItemCollections(List<ItemCollection> links);
+
+    @Query("DELETE FROM item_collections WHERE itemKey IN (:itemKeys)")
+    void deleteItemCollections(List<String> itemKeys);
+
+    @Query("DELETE FROM item_collections")
+    void clearItemCollections();
+
+    @Query("SELECT rowid, `key`, version, titlePinyin, titlePinyinFull, filesize, lastOpenedTimestamp, localMd5 FROM items WHERE `key` IN (:keys)")
+    List<ItemLocalState> getLocalStates(List<String> keys);
+
+    @Query("SELECT `key`, version FROM items")
+    List<KeyVersion> getAllVersions();
+
     @Query("SELECT MAX(version) FROM items")
     int getLatestVersion();
 
@@ -38,9 +107,85 @@ public interface ItemDao {
     @Query("DELETE FROM items WHERE key IN (:keys)")
     void deleteByKeys(List<String> keys);
 
+    /**
+     * Applies one batch of sync results in a single transaction, so SQLite commits
+     * (and Room notifies observers) once per batch instead of once per statement.
+     * Upserts are merged: rows already at the same or a newer version are left
+     * alone (a late, stale page never rolls an item back), and newer rows keep
+     * their local-only columns (last opened time, a file size learned while
+     * downloading, the checksum of the downloaded copy).
+     */
+    @Transaction
+    default void applyPage(List<Item> upserts, List<String> deletes) {
+        if (!upserts.isEmpty()) {
+            // Overlapping pages can list an item twice; the newest version wins.
+            Map<String, Item> byKey = new LinkedHashMap<>();
+            for (Item item : upserts) {
+                Item seen = byKey.get(item.key);
+                if (seen == null || item.version >= seen.version) byKey.put(item.key, item);
+            }
+            Map<String, ItemLocalState> localStates = new HashMap<>();
+            for (List<String> chunk : Utils.partition(new ArrayList<>(byKey.keySet()), AppDatabase.MAX_BIND_ARGS)) {
+                for (ItemLocalState state : getLocalStates(chunk)) localStates.put(state.key, state);
+            }
+
+            List<Item> inserts = new ArrayList<>();
+            List<Item> updates = new ArrayList<>();
+            List<String> updatedKeys = new ArrayList<>();
+            List<ItemFts> ftsRows = new ArrayList<>();
+            for (Item item : byKey.values()) {
+                ItemLocalState local = localStates.get(item.key);
+                if (local == null) {
+                    inserts.add(item);
+                } else if (item.version > local.version) {
+                    item.lastOpenedTimestamp = local.lastOpenedTimestamp;
+                    item.localMd5 = local.localMd5;
+                    if (item.filesize <= 0) item.filesize = local.filesize;
+                    updates.add(item);
+                    updatedKeys.add(item.key);
+                    ftsRows.add(ItemFts.fromItem(item, local.rowid));
+                }
+            }
+            if (!inserts.isEmpty()) {
+                long[] rowids = insertAll(inserts);
+                for (int i = 0; i < inserts.size(); i++) ftsRows.add(ItemFts.fromItem(inserts.get(i), rowids[i]));
+            }
+            if (!updates.isEmpty()) updateAll(updates);
+
+            // Replace the collection memberships and search rows of the changed items only;
+            // new items have none yet.
+            for (List<String> chunk : Utils.partition(updatedKeys, AppDatabase.MAX_BIND_ARGS)) {
+                deleteItemCollections(chunk);
+                deleteFts(chunk);
+            }
+            if (!ftsRows.isEmpty()) {
+                List<Item> changed = new ArrayList<>(inserts.size() + updates.size());
+                changed.addAll(inserts);
+                changed.addAll(updates);
+                insertItemCollections(ItemCollection.fromItems(changed));
+                insertFts(ftsRows);
+            }
+        }
+        for (List<String> chunk : Utils.partition(deletes, AppDatabase.MAX_BIND_ARGS)) {
+            deleteFts(chunk);
+            deleteByKeys(chunk);
+            deleteItemCollections(chunk);
+        }
+    }
+
     @Query("UPDATE items SET filesize = :filesize WHERE key = :itemKey")
     void updateFileSize(String itemKey, long filesize);
 
+    /** Copies the sizes from webdav_index to the attachments that are downloaded over WebDAV. */
+    @Query("UPDATE items SET filesize = (SELECT size FROM webdav_index WHERE itemKey = items.`key`)"
+            + " WHERE (url IS NULL OR url = '')"
+            + " AND `key` IN (SELECT itemKey FROM webdav_index WHERE size > 0)"
+            + " AND filesize != (SELECT size FROM webdav_index WHERE itemKey = items.`key`)")
+    int applyWebDavSizes();
+
+    @Query("UPDATE items SET localMd5 = :localMd5 WHERE `key` = :itemKey")
+    void updateLocalMd5(String itemKey, String localMd5);
+
     @Query("UPDATE items SET lastOpenedTimestamp = :timestamp WHERE `key` = :itemKey")
     void updateLastOpenedTimestamp(String itemKey, long timestamp);
 
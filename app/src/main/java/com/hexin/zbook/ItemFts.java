@@ -0,0 +1,108 @@
+package com.hexin.zbook;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+import androidx.room.PrimaryKey;
+
+import java.util.Locale;
+
+/**
+ * Full-text index over the searchable fields of {@link Item}, one row per item.
+ * Text is stored pre-tokenized (see {@link #tokenize}) so that the "simple"
+ * tokenizer splits CJK text into single characters and phrase queries can
+ * match inside a Chinese title. A row's docid is the rowid of its item, so it can be
+ * found without scanning the table: itemKey is stored but not indexed.
+ */
+@Fts4(notIndexed = {"itemKey"})
+@Entity(tableName = "items_fts")
+public class ItemFts {
+
+    @PrimaryKey
+    @ColumnInfo(name = "rowid")
+    public long rowid;
+
+    @NonNull
+    @ColumnInfo(name = "itemKey")
+    public String itemKey;
+
+    @ColumnInfo(name = "title")
+    public String title;
+
+    @ColumnInfo(name = "creators")
+    public String creators;
+
+    @ColumnInfo(name = "filename")
+    public String filename;
+
+    @ColumnInfo(name = "publicationDate")
+    public String publicationDate;
+
+    // 拼音首字母和全拼
+    @ColumnInfo(name = "pinyin")
+    public String pinyin;
+
+    public ItemFts(@NonNull String itemKey) {
+        this.itemKey = itemKey;
+    }
+
+    static ItemFts fromItem(Item item) {
+        ItemFts row = new ItemFts(item.key);
+        row.title = tokenize(item.title);
+        row.creators = tokenize(item.creators);
+        row.filename = tokenize(item.filename);
+        row.publicationDate = tokenize(item.publicationDate);
+        // Uses the stored pinyin columns, see PinyinUtils.apply().
+        row.pinyin = tokenize(nullToEmpty(item.titlePinyin) + " " + nullToEmpty(item.titlePinyinFull));
+        return row;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    static ItemFts fromItem(Item item, long rowid) {
+        ItemFts row = fromItem(item);
+        row.rowid = rowid;
+        return row;
+    }
+
+    /**
+     * Lower-cases {@code text}, turns punctuation into spaces and puts a space around
+     * every CJK character, so each one becomes its own token.
+     */
+    static String tokenize(String text) {
+        if (text == null || text.isEmpty()) return "";
+        String lower = text.toLowerCase(Locale.ROOT);
+        StringBuilder out = new StringBuilder(lower.length() + 16);
+        for (int i = 0; i < lower.length(); ) {
+            int codePoint = lower.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (isCjk(codePoint)) {
+                appendSeparator(out);
+                out.appendCodePoint(codePoint);
+                out.append(' ');
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                out.appendCodePoint(codePoint);
+            } else {
+                appendSeparator(out);
+            }
+        }
+        return out.toString().trim();
+    }
+
+    private static void appendSeparator(StringBuilder out) {
+        if (out.length() > 0 && out.charAt(out.length() - 1) != ' ') {
+            out.append(' ');
+        }
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
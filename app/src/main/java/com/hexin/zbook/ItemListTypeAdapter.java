@@ -0,0 +1,52 @@
+package com.hexin.zbook;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a whole /items page, handing each element to {@link ItemTypeAdapter}.
+ * Writes go to {@code delegate}.
+ */
+public class ItemListTypeAdapter extends TypeAdapter<List<Item>> {
+
+    // Zotero pages are at most 100 items, size the list for a full page up front.
+    private static final int EXPECTED_PAGE_SIZE = 100;
+
+    private final ItemTypeAdapter mItemAdapter;
+    private final TypeAdapter<List<Item>> mDelegate;
+
+    public ItemListTypeAdapter(ItemTypeAdapter itemAdapter, TypeAdapter<List<Item>> delegate) {
+        mItemAdapter = itemAdapter;
+        mDelegate = delegate;
+    }
+
+    @Override
+    public List<Item> read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        List<Item> items = new ArrayList<>(EXPECTED_PAGE_SIZE);
+        in.beginArray();
+        while (in.hasNext()) {
+            Item item = mItemAdapter.read(in);
+            if (item != null && item.key != null) {
+                items.add(item);
+            }
+        }
+        in.endArray();
+        return items;
+    }
+
+    @Override
+    public void write(JsonWriter out, List<Item> value) throws IOException {
+        mDelegate.write(out, value);
+    }
+}
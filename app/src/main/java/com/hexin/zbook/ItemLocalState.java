@@ -0,0 +1,16 @@
+package com.hexin.zbook;
+
+/**
+ * The stored state of an item that sync compares against before overwriting it,
+ * including the local-only columns a merge must carry over.
+ */
+public class ItemLocalState {
+    public long rowid;
+    public String key;
+    public int version;
+    public String titlePinyin;
+    public String titlePinyinFull;
+    public long filesize;
+    public long lastOpenedTimestamp;
+    public String localMd5;
+}
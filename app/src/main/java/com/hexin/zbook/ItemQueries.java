@@ -0,0 +1,96 @@
+package com.hexin.zbook;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the raw queries behind the paged "All Items" list, so sorting and
+ * filtering happen in SQLite instead of on a copy of the whole table, and the
+ * MATCH expressions used to search {@link ItemFts}.
+ */
+public final class ItemQueries {
+
+    private ItemQueries() {}
+
+    public static SupportSQLiteQuery allItems(SortField field, SortOrder order, boolean hideAttachments, String filter) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM items");
+        List<Object> args = new ArrayList<>();
+        List<String> conditions = new ArrayList<>();
+
+        if (hideAttachments) {
+            conditions.add("(itemType IS NULL OR itemType != 'attachment')");
+        }
+        String match = matchExpression(filter);
+        if (match != null) {
+            conditions.add("`key` IN (SELECT itemKey FROM items_fts WHERE items_fts MATCH ?)");
+            args.add(match);
+        }
+        if (!conditions.isEmpty()) {
+            sql.append(" WHERE ").append(String.join(" AND ", conditions));
+        }
+
+        sql.append(" ORDER BY ").append(orderBy(field, order));
+        return new SimpleSQLiteQuery(sql.toString(), args.toArray());
+    }
+
+    static String orderBy(SortField field, SortOrder order) {
+        String direction = order == SortOrder.DESC ? " DESC" : " ASC";
+        String expression;
+        // Each expression matches one of the sort-key indices declared on Item.
+        switch (field) {
+            case AUTHOR:
+                expression = "sortCreator" + direction;
+                break;
+            case PUBLISH_DATE:
+                expression = "sortYear" + direction + ", publicationDate" + direction;
+                break;
+            case DATE_ADDED:
+                expression = "dateAddedEpoch" + direction;
+                break;
+            case FILE_SIZE:
+                // Items other than attachments have no size; they sort apart from attachments whose
+                // size is unknown (0) instead of mixing with them. No index covers this one.
+                expression = "(itemType = 'attachment')" + direction + ", filesize" + direction;
+                break;
+            case NAME:
+            default:
+                expression = "sortTitle" + direction;
+                break;
+        }
+        // Paging loads windows with LIMIT/OFFSET, so ties need a stable order.
+        return expression + ", `key`" + direction;
+    }
+
+    /**
+     * Turns what the user typed into an FTS MATCH expression: every word must match,
+     * and the last token of each word is a prefix. A word containing CJK characters
+     * becomes a phrase of its characters. Returns null if nothing searchable is left.
+     */
+    static String matchExpression(String query) {
+        if (query == null) return null;
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            String tokens = ItemFts.tokenize(word);
+            if (tokens.isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            if (tokens.indexOf(' ') >= 0) {
+                match.append('"').append(tokens).append("*\"");
+            } else {
+                match.append(tokens).append('*');
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /** LIKE pattern for ranking titles that start with the query above other hits. */
+    static String titlePrefixPattern(String query) {
+        return escapeLike(SortKeys.fold(query)) + "%";
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
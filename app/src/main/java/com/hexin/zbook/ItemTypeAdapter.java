@@ -0,0 +1,258 @@
+package com.hexin.zbook;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Streams a single Zotero item object straight into an {@link Item}.
+ * Unlike the old tree-based deserializer no intermediate JsonObject is built:
+ * fields we don't store are skipped with {@link JsonReader#skipValue()}, and the
+ * creators/collections arrays are folded into their string form in one pass.
+ * Only reading is custom; writes go to {@code delegate}. Register it through
+ * {@link ItemAdapterFactory}.
+ */
+public class ItemTypeAdapter extends TypeAdapter<Item> {
+
+    private final TypeAdapter<Item> mDelegate;
+
+    public ItemTypeAdapter(TypeAdapter<Item> delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public Item read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        Item item = new Item();
+        item.deleted = false;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "key":
+                    item.key = nextStringOrNull(in);
+                    break;
+                case "version":
+                    item.version = in.nextInt();
+                    break;
+                case "deleted":
+                    // The "deleted" flag is checked in the top-level object
+                    item.deleted = nextBoolean(in);
+                    break;
+                case "data":
+                    readData(in, item);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return item;
+    }
+
+    private void readData(JsonReader in, Item item) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return;
+        }
+
+        // Attachment fields are only kept for attachments, but "itemType" is not
+        // guaranteed to come before them, so hold on to them until the object ends.
+        String filename = null;
+        String url = null;
+        long filesize = 0;
+        String md5 = null;
+        long mtime = 0;
+
+        item.title = "";
+        item.creators = "";
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "itemType":
+                    item.itemType = nextStringOrNull(in);
+                    break;
+                case "title":
+                    String title = nextStringOrNull(in);
+                    item.title = title != null ? title : "";
+                    break;
+                case "parentItem":
+                    item.parentItem = nextStringOrNull(in);
+                    break;
+                case "dateAdded":
+                    item.dateAdded = nextStringOrNull(in);
+                    break;
+                case "dateModified":
+                    item.dateModified = nextStringOrNull(in);
+                    break;
+                case "date":
+                    item.publicationDate = nextStringOrNull(in);
+                    break;
+                case "collections":
+                    item.collectionKey = readCollections(in);
+                    break;
+                case "creators":
+                    readCreators(in, item);
+                    break;
+                case "filename":
+                    filename = nextStringOrNull(in);
+                    break;
+                case "url":
+                    url = nextStringOrNull(in);
+                    break;
+                case "filesize":
+                    filesize = nextLong(in);
+                    break;
+                case "md5":
+                    md5 = nextStringOrNull(in);
+                    break;
+                case "mtime":
+                    mtime = nextLong(in);
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+
+        // Attachment-specific fields
+        if ("attachment".equals(item.itemType)) {
+            item.filename = filename != null ? filename : "";
+            item.url = url != null ? url : "";
+            item.filesize = filesize;
+            item.md5 = md5;
+            item.mtime = mtime;
+        }
+
+        SortKeys.apply(item);
+    }
+
+    private String readCollections(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {
+            in.skipValue();
+            return null;
+        }
+        StringBuilder keys = null;
+        in.beginArray();
+        while (in.hasNext()) {
+            String key = nextStringOrNull(in);
+            if (key == null) continue;
+            if (keys == null) {
+                keys = new StringBuilder(key.length());
+            } else {
+                keys.append(',');
+            }
+            keys.append(key);
+        }
+        in.endArray();
+        return keys != null ? keys.toString() : null;
+    }
+
+    private void readCreators(JsonReader in, Item item) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {
+            in.skipValue();
+            return;
+        }
+        StringBuilder creatorsBuilder = new StringBuilder();
+        String firstSurname = null;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                continue;
+            }
+            String firstName = null;
+            String lastName = null;
+            String name = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "firstName":
+                        firstName = nextStringOrNull(in);
+                        break;
+                    case "lastName":
+                        lastName = nextStringOrNull(in);
+                        break;
+                    case "name":
+                        name = nextStringOrNull(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+
+            if (firstSurname == null) {
+                firstSurname = lastName != null ? lastName : name;
+            }
+            if (firstName != null && lastName != null) {
+                if (creatorsBuilder.length() > 0) {
+                    creatorsBuilder.append(", ");
+                }
+                creatorsBuilder.append(firstName).append(" ").append(lastName);
+            } else if (name != null) { // For institutional authors
+                if (creatorsBuilder.length() > 0) {
+                    creatorsBuilder.append(", ");
+                }
+                creatorsBuilder.append(name);
+            }
+        }
+        in.endArray();
+        item.creators = creatorsBuilder.toString();
+        if (firstSurname != null) {
+            item.sortCreator = SortKeys.fold(firstSurname);
+        }
+    }
+
+    static String nextStringOrNull(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return in.nextString();
+        }
+        in.skipValue();
+        return null;
+    }
+
+    static boolean nextBoolean(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return in.nextBoolean();
+        }
+        if (token == JsonToken.NUMBER) {
+            return in.nextInt() != 0;
+        }
+        in.skipValue();
+        return false;
+    }
+
+    private static long nextLong(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            // Read it as a string first so a malformed value is still consumed.
+            String value = in.nextString();
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        in.skipValue();
+        return 0;
+    }
+
+    @Override
+    public void write(JsonWriter out, Item value) throws IOException {
+        mDelegate.write(out, value);
+    }
+}
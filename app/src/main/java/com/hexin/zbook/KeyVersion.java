@@ -0,0 +1,10 @@
+package com.hexin.zbook;
+
+/**
+ * The key and version of a stored item or collection, compared against the
+ * server's {@code format=versions} map during a sync.
+ */
+public class KeyVersion {
+    public String key;
+    public int version;
+}
@@ -14,23 +14,75 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.LifecycleOwner;
-import androidx.lifecycle.LiveData;
-import androidx.lifecycle.Observer;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
 
-    private List<Object> mData = new ArrayList<>();
+    // Partial-bind payloads, see DIFF_CALLBACK.getChangePayload()
+    static final Object PAYLOAD_SECONDARY_TEXT = new Object();
+    static final Object PAYLOAD_TITLE = new Object();
+    static final Object PAYLOAD_PROGRESS = new Object();
+
+    /**
+     * Rows are Items, Collections or the "All Items (n)" / "Recently Opened (n)" header strings.
+     * A header keeps its identity when only its count changes.
+     */
+    private static final DiffUtil.ItemCallback<Object> DIFF_CALLBACK = new DiffUtil.ItemCallback<Object>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Object oldRow, @NonNull Object newRow) {
+            return stableKey(oldRow).equals(stableKey(newRow));
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Object oldRow, @NonNull Object newRow) {
+            if (oldRow instanceof Item) {
+                Item oldItem = (Item) oldRow;
+                Item newItem = (Item) newRow;
+                return oldItem.version == newItem.version
+                        && oldItem.lastOpenedTimestamp == newItem.lastOpenedTimestamp
+                        && oldItem.filesize == newItem.filesize;
+            }
+            if (oldRow instanceof Collection) {
+                Collection oldCollection = (Collection) oldRow;
+                Collection newCollection = (Collection) newRow;
+                return oldCollection.version == newCollection.version
+                        && Objects.equals(oldCollection.name, newCollection.name);
+            }
+            return oldRow.equals(newRow);
+        }
+
+        @Override
+        public Object getChangePayload(@NonNull Object oldRow, @NonNull Object newRow) {
+            if (oldRow instanceof Item) {
+                Item oldItem = (Item) oldRow;
+                Item newItem = (Item) newRow;
+                // Opening an item only changes its "last opened" text.
+                if (oldItem.version == newItem.version && oldItem.filesize == newItem.filesize) {
+                    return PAYLOAD_SECONDARY_TEXT;
+                }
+                return null;
+            }
+            return PAYLOAD_TITLE;
+        }
+    };
+
+    private final AsyncListDiffer<Object> mDiffer = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    // Position of each item row by key, rebuilt per submitted list for the progress batches.
+    private Map<String, Integer> mItemPositions = new HashMap<>();
+    // Stable ids are handed out per row key, so they never collide.
+    private final Map<String, Long> mStableIds = new HashMap<>();
 
     private Map<String, Integer> mCollectionCounts = new HashMap<>();
     private OnItemClickListener mItemClickListener;
     private OnActionClickListener mActionClickListener;
-    private final LifecycleOwner mLifecycleOwner;
     private final DownloadManager mDownloadManager;
     private Boolean IsInAllItemsView;
 
@@ -47,8 +99,25 @@ public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
     }
 
     public ListAdapter(LifecycleOwner lifecycleOwner, DownloadManager downloadManager) {
-        mLifecycleOwner = lifecycleOwner;
         mDownloadManager = downloadManager;
+        setHasStableIds(true);
+        mDiffer.addListListener((previous, current) -> {
+            Map<String, Integer> positions = new HashMap<>();
+            for (int i = 0; i < current.size(); i++) {
+                Object row = current.get(i);
+                if (row instanceof Item) positions.put(((Item) row).key, i);
+            }
+            mItemPositions = positions;
+        });
+        downloadManager.getProgressUpdates().observe(lifecycleOwner, this::onProgressUpdates);
+    }
+
+    private void onProgressUpdates(Map<String, DownloadManager.DownloadProgress> changed) {
+        if (changed == null) return;
+        for (String key : changed.keySet()) {
+            Integer position = mItemPositions.get(key);
+            if (position != null) notifyItemChanged(position, PAYLOAD_PROGRESS);
+        }
     }
 
     public void setOnItemClickListener(OnItemClickListener listener) {
@@ -67,8 +136,19 @@ public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
     }
 
     public void setCollectionCounts(Map<String, Integer> counts) {
+        Map<String, Integer> oldCounts = mCollectionCounts;
         mCollectionCounts = counts;
-        notifyDataSetChanged();
+        // Only collection rows whose count actually changed are rebound.
+        List<Object> rows = mDiffer.getCurrentList();
+        for (int i = 0; i < rows.size(); i++) {
+            Object row = rows.get(i);
+            if (row instanceof Collection) {
+                String key = ((Collection) row).key;
+                if (!Objects.equals(oldCounts.get(key), counts.get(key))) {
+                    notifyItemChanged(i, PAYLOAD_TITLE);
+                }
+            }
+        }
     }
 
     @NonNull
@@ -83,24 +163,62 @@ public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        Object data = mData.get(position);
-        holder.bind(data, mDownloadManager, mLifecycleOwner, mItemClickListener, mActionClickListener, mCollectionCounts);
+        Object data = mDiffer.getCurrentList().get(position);
+        holder.bind(data, mDownloadManager, mItemClickListener, mActionClickListener, mCollectionCounts);
     }
 
     @Override
-    public void onViewRecycled(@NonNull ViewHolder holder) {
-        super.onViewRecycled(holder);
-        holder.cleanup();
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        Object data = mDiffer.getCurrentList().get(position);
+        // The click listener captured the old row object, keep it pointing at the new one.
+        holder.itemView.setOnClickListener(v -> {
+            if (mItemClickListener != null) mItemClickListener.onItemClick(data);
+        });
+        for (Object payload : payloads) {
+            if (payload == PAYLOAD_SECONDARY_TEXT && data instanceof Item) {
+                holder.bindSecondaryText((Item) data);
+            } else if (payload == PAYLOAD_TITLE) {
+                holder.bindTitle(data, mCollectionCounts);
+            } else if (payload == PAYLOAD_PROGRESS) {
+                holder.bindProgress();
+            }
+        }
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String key = stableKey(mDiffer.getCurrentList().get(position));
+        Long id = mStableIds.get(key);
+        if (id == null) {
+            id = (long) mStableIds.size();
+            mStableIds.put(key, id);
+        }
+        return id;
+    }
+
+    private static String stableKey(Object row) {
+        if (row instanceof Item) return "i:" + ((Item) row).key;
+        if (row instanceof Collection) return "c:" + ((Collection) row).key;
+        String text = String.valueOf(row);
+        int count = text.lastIndexOf(" (");
+        return "s:" + (count > 0 ? text.substring(0, count) : text);
     }
 
     @Override
     public int getItemCount() {
-        return mData.size();
+        return mDiffer.getCurrentList().size();
     }
 
+    /**
+     * Diffs {@code data} against the current rows off the main thread and only
+     * notifies the rows that moved or changed.
+     */
     public void setData(List<Object> data) {
-        mData = data;
-        notifyDataSetChanged();
+        mDiffer.submitList(data != null ? new ArrayList<>(data) : null);
     }
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
@@ -113,8 +231,10 @@ public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
 
         final TextView authorDate;
 
-        private LiveData<DownloadManager.DownloadProgress> progressLiveData;
-        private Observer<DownloadManager.DownloadProgress> progressObserver;
+        private DownloadManager mDownloadManager;
+        private OnActionClickListener mActionClickListener;
+        // The bound attachment, or null when the row is not an attachment.
+        private Item mItem;
 
         public ViewHolder(View view) {
             super(view);
@@ -127,8 +247,10 @@ public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
             defaultTextColor = textView.getTextColors();
         }
 
-        void bind(Object data, DownloadManager downloadManager, LifecycleOwner lifecycleOwner, OnItemClickListener itemClickListener, OnActionClickListener actionClickListener, Map<String, Integer> collectionCounts) {
-            cleanup();
+        void bind(Object data, DownloadManager downloadManager, OnItemClickListener itemClickListener, OnActionClickListener actionClickListener, Map<String, Integer> collectionCounts) {
+            mDownloadManager = downloadManager;
+            mActionClickListener = actionClickListener;
+            mItem = null;
             textView.setTextColor(defaultTextColor);
             icon.setVisibility(View.VISIBLE);
             progressBar.setVisibility(View.GONE);
@@ -143,7 +265,7 @@ public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
             });
 
             if (data instanceof Item) {
-                bindItem((Item) data, downloadManager, lifecycleOwner, actionClickListener);
+                bindItem((Item) data);
             } else if (data instanceof Collection) {
                 bindCollection((Collection) data, collectionCounts);
             }
@@ -168,18 +290,27 @@ public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
             }
         }
 
+        void bindTitle(Object data, Map<String, Integer> collectionCounts) {
+            if (data instanceof Item) {
+                textView.setText(((Item) data).title);
+            } else if (data instanceof Collection) {
+                Collection collection = (Collection) data;
+                Integer count = collectionCounts.get(collection.key);
+                String countText = (count == null) ? "" : " (" + count + ")";
+                textView.setText(collection.name + countText);
+            } else if (data instanceof String) {
+                textView.setText((String) data);
+            }
+        }
+
         private void bindCollection(Collection collection, Map<String, Integer> collectionCounts) {
-            Integer count = collectionCounts.get(collection.key);
-            String countText = (count == null) ? "" : " (" + count + ")";
-            textView.setText(collection.name + countText);
+            bindTitle(collection, collectionCounts);
             icon.setImageResource(R.drawable.cell_collection);
             authorDate.setVisibility(View.GONE); // 确保 Collection 没有第二行文本
         }
 
-        private void bindItem(Item item, DownloadManager downloadManager, LifecycleOwner lifecycleOwner, OnActionClickListener actionClickListener) {
-            textView.setText(item.title);
-
-
+        /** The "作者 | 年份 | 打开时间" line under the title. */
+        void bindSecondaryText(Item item) {
             // --- 构造 "作者 (发布日期)" 字符串的核心逻辑 ---
             StringBuilder secondaryTextBuilder = new StringBuilder();
             if (item.creators != null && !item.creators.isEmpty()) {
@@ -211,9 +342,11 @@ public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
                 authorDate.setVisibility(View.GONE);
             }
             // --- 核心逻辑结束 ---
+        }
 
-
-
+        private void bindItem(Item item) {
+            textView.setText(item.title);
+            bindSecondaryText(item);
 
             int iconResId;
             if (item.itemType != null) {
@@ -246,73 +379,66 @@ public class ListAdapter extends RecyclerView.Adapter<ListAdapter.ViewHolder> {
             }
             icon.setImageResource(iconResId);
 
-            if ("attachment".equals(item.itemType)) {
-                progressObserver = progress -> {
-                    if (progress == null) return;
-
-                    if (progress.state == DownloadManager.DownloadState.DOWNLOADED) {
-                        textView.setTextColor(defaultTextColor);
-                    } else {
-                        textView.setTextColor(defaultTextColor);
-                    }
-
-                    boolean isDownloading = progress.state == DownloadManager.DownloadState.DOWNLOADING;
-                    boolean isFailed = progress.state == DownloadManager.DownloadState.FAILED;
-                    boolean isDownloaded = progress.state == DownloadManager.DownloadState.DOWNLOADED;
-
-                    progressBar.setVisibility(isDownloading ? View.VISIBLE : View.GONE);
-                    progressText.setVisibility(View.VISIBLE);
-                    actionButton.setVisibility(View.VISIBLE);
-                    
-                    if (isDownloading) {
-                        progressBar.setIndeterminate(progress.totalBytes <= 0);
-                        progressBar.setMax(100);
-                        int percent = progress.totalBytes > 0 ? (int) (progress.bytesDownloaded * 100 / progress.totalBytes) : 0;
-                        progressBar.setProgress(percent);
-                        progressText.setText(String.format("%s / %s", Formatter.formatFileSize(itemView.getContext(), progress.bytesDownloaded), Formatter.formatFileSize(itemView.getContext(), progress.totalBytes)));
-                    } else if (isFailed) {
-                        progressText.setText(progress.error != null ? progress.error : "Failed");
-                    } else if (isDownloaded) {
-                        long size = progress.totalBytes > 0 ? progress.totalBytes : item.filesize;
-                        if(size > 0) progressText.setText(Formatter.formatFileSize(itemView.getContext(), size));
-                        else progressText.setText("");
-                    } else {
-                        if(item.filesize > 0) progressText.setText(Formatter.formatFileSize(itemView.getContext(), item.filesize));
-                        else progressText.setText("");
-                    }
-
-                    int actionIconRes;
-                    switch (progress.state) {
-                        case DOWNLOADED:
-                            actionIconRes = R.drawable.badge_shareext_failed;
-                            break;
-                        case DOWNLOADING:
-                        case QUEUED:
-                            actionIconRes = R.drawable.badge_shareext_failed;
-                            break;
-                        default:
-                            actionIconRes = R.drawable.attachment_detail_download;
-                            break;
-                    }
-                    actionButton.setImageResource(actionIconRes);
-                    actionButton.setOnClickListener(v -> {
-                        if (actionClickListener != null) {
-                            actionClickListener.onActionClick(item, progress.state);
-                        }
-                    });
-                };
-
-                progressLiveData = downloadManager.getDownloadProgress(item.key, item.filename);
-                progressLiveData.observe(lifecycleOwner, progressObserver);
+            mItem = "attachment".equals(item.itemType) ? item : null;
+            if (mItem != null) {
+                bindProgress();
             }
         }
 
-        void cleanup() {
-            if (progressLiveData != null && progressObserver != null) {
-                progressLiveData.removeObserver(progressObserver);
-                progressLiveData = null;
-                progressObserver = null;
+        /** Redraws the download state of an attachment row; other rows have none. */
+        void bindProgress() {
+            if (mItem == null) return;
+            DownloadManager.DownloadProgress progress = mDownloadManager.getDownloadProgress(mItem.key, mItem.filename);
+            if (progress.state == DownloadManager.DownloadState.DOWNLOADED) {
+                textView.setTextColor(defaultTextColor);
+            } else {
+                textView.setTextColor(defaultTextColor);
+            }
+
+            boolean isDownloading = progress.state == DownloadManager.DownloadState.DOWNLOADING;
+            boolean isFailed = progress.state == DownloadManager.DownloadState.FAILED;
+            boolean isDownloaded = progress.state == DownloadManager.DownloadState.DOWNLOADED;
+
+            progressBar.setVisibility(isDownloading ? View.VISIBLE : View.GONE);
+            progressText.setVisibility(View.VISIBLE);
+            actionButton.setVisibility(View.VISIBLE);
+            
+            if (isDownloading) {
+                progressBar.setIndeterminate(progress.totalBytes <= 0);
+                progressBar.setMax(100);
+                int percent = progress.totalBytes > 0 ? (int) (progress.bytesDownloaded * 100 / progress.totalBytes) : 0;
+                progressBar.setProgress(percent);
+                progressText.setText(String.format("%s / %s", Formatter.formatFileSize(itemView.getContext(), progress.bytesDownloaded), Formatter.formatFileSize(itemView.getContext(), progress.totalBytes)));
+            } else if (isFailed) {
+                progressText.setText(progress.error != null ? progress.error : "Failed");
+            } else if (isDownloaded) {
+                long size = progress.totalBytes > 0 ? progress.totalBytes : mItem.filesize;
+                if(size > 0) progressText.setText(Formatter.formatFileSize(itemView.getContext(), size));
+                else progressText.setText("");
+            } else {
+                if(mItem.filesize > 0) progressText.setText(Formatter.formatFileSize(itemView.getContext(), mItem.filesize));
+                else progressText.setText("");
+            }
+
+            int actionIconRes;
+            switch (progress.state) {
+                case DOWNLOADED:
+                    actionIconRes = R.drawable.badge_shareext_failed;
+                    break;
+                case DOWNLOADING:
+                case QUEUED:
+                    actionIconRes = R.drawable.badge_shareext_failed;
+                    break;
+                default:
+                    actionIconRes = R.drawable.attachment_detail_download;
+                    break;
             }
+            actionButton.setImageResource(actionIconRes);
+            actionButton.setOnClickListener(v -> {
+                if (mActionClickListener != null) {
+                    mActionClickListener.onActionClick(mItem, progress.state);
+                }
+            });
         }
     }
 
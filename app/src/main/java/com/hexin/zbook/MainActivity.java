@@ -29,7 +29,6 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -38,10 +37,11 @@ import java.util.Date;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 
+import kotlin.Unit;
+import kotlin.jvm.functions.Function0;
 import kotlin.text.CharCategory;
 
 public class MainActivity extends AppCompatActivity implements ListAdapter.OnActionClickListener, SearchView.OnQueryTextListener {
@@ -55,6 +55,10 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
 
     private MainViewModel mMainViewModel;
     private ListAdapter mAdapter;
+    private PagedItemAdapter mPagedAdapter;
+    // Set when the All Items query changes; the list goes back to the top once the new pages are shown.
+    private boolean mScrollAllItemsToTop;
+    private RecyclerView mRecyclerView;
     private Toolbar mToolbar;
     private SettingsManager mSettingsManager;
 
@@ -68,11 +72,10 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
     private Deque<NavigationState> mNavigationStack = new ArrayDeque<>();
 
     private List<Collection> mAllCollectionsCache = new ArrayList<>();
-    private List<Item> mAllItemsCache = new ArrayList<>();
+    private ItemCounts mItemCounts = new ItemCounts();
     private List<Object> mCurrentlyDisplayedItems = new ArrayList<>();
-
-    private enum SortField { NAME,AUTHOR, PUBLISH_DATE,DATE_ADDED, FILE_SIZE }
-    private enum SortOrder { ASC, DESC }
+    private String mCurrentSearchQuery = "";
+    private List<Item> mLibrarySearchHits = new ArrayList<>();
 
     private SortField mSortField = SortField.NAME;
     private SortOrder mSortOrder = SortOrder.ASC;
@@ -90,23 +93,6 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
         }
     }
 
-    private void processPinyinForList(List<Object> list) {
-        if (list == null) {
-            return;
-        }
-        for (Object obj : list) {
-            if (obj instanceof Item) {
-                Item item = (Item) obj;
-                if (item.title != null) {
-                    item.titlePinyin = PinyinUtils.getFirstSpell(item.title);
-                }
-            }
-        }
-    }
-
-
-
-
     private List<Item> mRecentItemsCache = new ArrayList<>();
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -134,10 +120,11 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
         mSettingsManager = SettingsManager.getInstance(this);
         mMainViewModel = new ViewModelProvider(this).get(MainViewModel.class);
 
-        RecyclerView recyclerView = findViewById(R.id.recyclerview);
+        mRecyclerView = findViewById(R.id.recyclerview);
         mAdapter = new ListAdapter(this, mMainViewModel.getDownloadManager());
-        recyclerView.setAdapter(mAdapter);
-        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        mPagedAdapter = new PagedItemAdapter(this, mMainViewModel.getDownloadManager());
+        mRecyclerView.setAdapter(mAdapter);
+        mRecyclerView.setLayoutManager(new LinearLayoutManager(this));
 
         setupClickListener();
         observeViewModel();
@@ -150,7 +137,7 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
             navigateTo(initialState, false);
         }
 
-        mMainViewModel.syncData(mSettingsManager.getApiKey(), mSettingsManager.getUserId());
+        mMainViewModel.syncData(mSettingsManager.getApiKey(), mSettingsManager.getUserId(), false);
     }
     
     @Override
@@ -181,36 +168,64 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
 
     @Override
     public boolean onQueryTextChange(String newText) {
-        if (newText == null || newText.isEmpty()) {
+        mCurrentSearchQuery = newText != null ? newText : "";
+        if (isShowingAllItems()) {
+            // The paged list is filtered in SQL rather than in memory.
+            renderAllItemsList();
+            return true;
+        }
+        if (isShowingRootCollections()) {
+            // Items anywhere in the library are found through the items_fts index.
+            mMainViewModel.setLibrarySearchQuery(mCurrentSearchQuery);
+            showRootSearchResults();
+            return true;
+        }
+        if (mCurrentSearchQuery.isEmpty()) {
             mAdapter.setData(mCurrentlyDisplayedItems);
         } else {
-            String query = newText.toLowerCase();
-            List<Object> filteredList = new ArrayList<>();
-            for (Object item : mCurrentlyDisplayedItems) {
-                if (item instanceof Collection) {
-                    if (((Collection) item).name.toLowerCase().contains(query)) {
-                        filteredList.add(item);
-                    }
-                } else if (item instanceof Item) {
-                    Item it = (Item) item;
+            mAdapter.setData(filterDisplayedItems(mCurrentSearchQuery));
+        }
+        return true;
+    }
+
+    private List<Object> filterDisplayedItems(String newText) {
+        String query = newText.toLowerCase();
+        List<Object> filteredList = new ArrayList<>();
+        for (Object item : mCurrentlyDisplayedItems) {
+            if (item instanceof Collection) {
+                if (((Collection) item).name.toLowerCase().contains(query)) {
+                    filteredList.add(item);
+                }
+            } else if (item instanceof Item) {
+                Item it = (Item) item;
 
-                    // 核心修改：同时检查原始标题和拼音首字母
-                    boolean titleMatches = it.title != null && it.title.toLowerCase().contains(query);
-                    boolean pinyinMatches = it.titlePinyin != null && it.titlePinyin.toLowerCase().contains(query);
+                // 核心修改：同时检查原始标题和拼音首字母
+                boolean titleMatches = it.title != null && it.title.toLowerCase().contains(query);
+                boolean pinyinMatches = (it.titlePinyin != null && it.titlePinyin.toLowerCase().contains(query))
+                        || (it.titlePinyinFull != null && it.titlePinyinFull.contains(query));
 
-                    if (titleMatches || pinyinMatches) {
-                        filteredList.add(item);
-                    }
+                if (titleMatches || pinyinMatches) {
+                    filteredList.add(item);
+                }
 
-                } else if (item instanceof String) {
-                    if (((String) item).toLowerCase().contains(query)) {
-                        filteredList.add(item);
-                    }
+            } else if (item instanceof String) {
+                if (((String) item).toLowerCase().contains(query)) {
+                    filteredList.add(item);
                 }
             }
-            mAdapter.setData(filteredList);
         }
-        return true;
+        return filteredList;
+    }
+
+    private void showRootSearchResults() {
+        if (mCurrentSearchQuery.isEmpty()) {
+            mAdapter.setData(mCurrentlyDisplayedItems);
+            return;
+        }
+        // Matching collections first, then the best library-wide item hits.
+        List<Object> results = filterDisplayedItems(mCurrentSearchQuery);
+        results.addAll(mLibrarySearchHits);
+        mAdapter.setData(results);
     }
 
     @Override
@@ -290,9 +305,13 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
             if (mMainViewModel.isSyncing().getValue() != null && mMainViewModel.isSyncing().getValue()) {
                 mMainViewModel.cancelSync();
             } else {
-                mMainViewModel.syncData(mSettingsManager.getApiKey(), mSettingsManager.getUserId());
+                mMainViewModel.syncData(mSettingsManager.getApiKey(), mSettingsManager.getUserId(), true);
             }
             return true;
+        } else if (itemId == R.id.action_reconcile) {
+            mMainViewModel.reconcileData(mSettingsManager.getApiKey(), mSettingsManager.getUserId());
+            Toast.makeText(this, "Checking local library against the server...", Toast.LENGTH_SHORT).show();
+            return true;
         }
 
 
@@ -331,6 +350,8 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
             }
         });
         mAdapter.setOnActionClickListener(this);
+        mPagedAdapter.setOnItemClickListener(item -> handleItemClick((Item) item));
+        mPagedAdapter.setOnActionClickListener(this);
 
         mToolbar.setNavigationOnClickListener(v -> onBackPressed());
     }
@@ -355,15 +376,36 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
             if (!mNavigationStack.isEmpty()) navigateTo(mNavigationStack.peek(), false);
         });
 
-        mMainViewModel.getAllItems().observe(this, items -> {
-            mAllItemsCache = items;
+        mMainViewModel.getItemCounts().observe(this, counts -> {
+            mItemCounts = counts != null ? counts : new ItemCounts();
             if (!mNavigationStack.isEmpty()){
                 String currentKey = mNavigationStack.peek().key;
                  if(NAV_KEY_ROOT_COLLECTIONS.equals(currentKey)) renderTopLevelCollectionsList();
-                 else if(NAV_KEY_ALL_ITEMS.equals(currentKey)) renderAllItemsList();
+                 else if(NAV_KEY_ALL_ITEMS.equals(currentKey)) updateAllItemsTitle();
+            }
+        });
+
+        mMainViewModel.getAllItemsPaged().observe(this, pagingData -> {
+            mPagedAdapter.submitData(getLifecycle(), pagingData);
+            if (mScrollAllItemsToTop) {
+                mScrollAllItemsToTop = false;
+                // The diff against the old order would otherwise keep the view on whatever item was on screen.
+                mPagedAdapter.addOnPagesUpdatedListener(new Function0<Unit>() {
+                    @Override
+                    public Unit invoke() {
+                        mPagedAdapter.removeOnPagesUpdatedListener(this);
+                        if (mRecyclerView.getAdapter() == mPagedAdapter) mRecyclerView.scrollToPosition(0);
+                        return Unit.INSTANCE;
+                    }
+                });
             }
         });
 
+        mMainViewModel.getLibrarySearchResults().observe(this, hits -> {
+            mLibrarySearchHits = hits != null ? hits : new ArrayList<>();
+            if (isShowingRootCollections()) showRootSearchResults();
+        });
+
         mMainViewModel.getCollectionCounts().observe(this, counts -> {
             Map<String, Integer> countMap = new HashMap<>();
             for (CollectionCount count : counts) {
@@ -409,7 +451,7 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
     }
 
     private void handleItemClick(Item item) {
-        DownloadManager.DownloadProgress progress = mMainViewModel.getDownloadManager().getDownloadProgress(item.key, item.filename).getValue();
+        DownloadManager.DownloadProgress progress = mMainViewModel.getDownloadManager().getDownloadProgress(item.key, item.filename);
 
 
 
@@ -419,13 +461,18 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
             if (progress != null && progress.state == DownloadManager.DownloadState.DOWNLOADED) {
                 openFile(item);
             }
-            // 如果它当前没有正在下载或排队，则开始下载
-            else if (progress == null || (progress.state != DownloadManager.DownloadState.DOWNLOADING && progress.state != DownloadManager.DownloadState.QUEUED)) {
+            // 如果已在排队（例如批量下载中），则提到队首
+            else if (progress != null && progress.state == DownloadManager.DownloadState.QUEUED) {
+                mMainViewModel.getDownloadManager().startDownload(item, false);
+                Toast.makeText(this, "Moved to the front of the queue: " + item.filename, Toast.LENGTH_SHORT).show();
+            }
+            // 如果它当前没有正在下载，则开始下载
+            else if (progress == null || progress.state != DownloadManager.DownloadState.DOWNLOADING) {
                 mMainViewModel.getDownloadManager().startDownload(item, false); // 'false' 表示这不是一个“批量下载”
                 // (可选，但推荐) 给用户一个即时反馈
                 Toast.makeText(this, "Download started: " + item.filename, Toast.LENGTH_SHORT).show();
             }
-            // 如果它正在下载或排队中，则本次点击不执行任何操作
+            // 如果它正在下载中，则本次点击不执行任何操作
 
         }
 
@@ -490,6 +537,9 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
 
         getSupportActionBar().setDisplayHomeAsUpEnabled(mNavigationStack.size() > 1);
 
+        RecyclerView.Adapter<?> adapter = NAV_KEY_ALL_ITEMS.equals(newState.key) ? mPagedAdapter : mAdapter;
+        if (mRecyclerView.getAdapter() != adapter) mRecyclerView.setAdapter(adapter);
+
         if (NAV_KEY_ROOT_COLLECTIONS.equals(newState.key)) renderTopLevelCollectionsList();
         else if (NAV_KEY_ALL_ITEMS.equals(newState.key)) renderAllItemsList();
         else if (NAV_KEY_RECENT_ITEMS.equals(newState.key))  renderRecentItemsList();
@@ -517,15 +567,7 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
     }
         // 更新当前显示
     private void sortList(List<Object> list) {
-        // 1. 定义日期格式。你需要根据 Zotero API 返回的日期格式来选择。
-        // Zotero 通常使用 ISO 8601 格式，例如 "2023-10-26T10:00:00Z"。
-        // SimpleDateFormat 对于这种带'T'和'Z'的格式处理起来比较麻烦，
-        // 在 Android API 26+ 中使用 Instant.parse() 会更简单。
-        // 但为了兼容性，我们还是用 SimpleDateFormat，并对字符串做一些处理。
-        String pattern = "yyyy-MM-dd";
-        SimpleDateFormat sdf = new SimpleDateFormat(pattern, Locale.getDefault());
-
-
+        // 排序键在同步时已预先计算（见 SortKeys），这里只做简单比较
         Collections.sort(list, (o1, o2) -> {
             boolean isO1String = o1 instanceof String;
             boolean isO2String = o2 instanceof String;
@@ -533,122 +575,53 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
             if (!isO1String && isO2String) return 1;
             if (isO1String && isO2String) return 0;
 
-            int result = 0;
-            switch (mSortField) {
-                case NAME:
-                    String name1 = (o1 instanceof Collection) ? ((Collection) o1).name : ((Item) o1).title;
-                    String name2 = (o2 instanceof Collection) ? ((Collection) o2).name : ((Item) o2).title;
-                    result = name1.compareToIgnoreCase(name2);
-                    break;
-                // ... case NAME: ...
+            if (mSortField != SortField.NAME) {
+                // Collections only have a name, keep them ahead of items
+                boolean isO1Collection = o1 instanceof Collection;
+                boolean isO2Collection = o2 instanceof Collection;
+                if (isO1Collection && !isO2Collection) return -1;
+                if (!isO1Collection && isO2Collection) return 1;
+                if (isO1Collection && isO2Collection) {
+                    return SortKeys.fold(((Collection) o1).name).compareTo(SortKeys.fold(((Collection) o2).name));
+                }
+            }
 
+            int result;
+            switch (mSortField) {
                 case AUTHOR:
-                    String author1 = (o1 instanceof Item) ? ((Item) o1).creators : "";
-                    String author2 = (o2 instanceof Item) ? ((Item) o2).creators : "";
-                    if (author1 == null) author1 = "";
-                    if (author2 == null) author2 = "";
-                    // Collections don't have authors, sort them first
-                    if (o1 instanceof Collection) return -1;
-                    if (o2 instanceof Collection) return 1;
-                    result = author1.compareToIgnoreCase(author2);
+                    result = nullToEmpty(((Item) o1).sortCreator).compareTo(nullToEmpty(((Item) o2).sortCreator));
                     break;
-
-                // ... case DATE_ADDED: ...
-
                 case PUBLISH_DATE:
-                    try {
-                        String dateStr1 = ((Item) o1).publicationDate;
-                        String dateStr2 = ((Item) o2).publicationDate;
-
-                        // --- 开始健壮的日期比较逻辑 ---
-
-                        // 1. 优先提取年份进行比较
-                        Integer year1 = Utils.extractYear(dateStr1);
-                        Integer year2 = Utils.extractYear(dateStr2);
-
-                        // 2. 处理一个有年份一个没有的情况
-                        if (year1 != null && year2 == null) {
-                            result = 1; // 有年份的排在前面 (更明确的信息)
-                            break;
-                        }
-                        if (year1 == null && year2 != null) {
-                            result = -1; // 有年份的排在前面
-                            break;
-                        }
-
-                        // 3. 如果两个都有年份，直接比较年份
-                        if (year1 != null && year2 != null) {
-                            // 如果年份不相等，直接得出结论
-                            if (!year1.equals(year2)) {
-                                result = year1.compareTo(year2);
-                                break;
-                            }
-                            // 如果年份相等，回退到字符串比较，以便处理 "2024-05" vs "2024-06"
-                            // 这种格式良好的字符串比较是有效的
-                        }
-
-                        // 4. 回退：如果两个都没有有效年份，或年份相同，则进行字符串比较
-                        // 确保 null 安全
-                        if (dateStr1 == null) dateStr1 = "";
-                        if (dateStr2 == null) dateStr2 = "";
-                        result = dateStr1.compareTo(dateStr2);
-                    }catch (Exception e) {
-
+                    result = Integer.compare(((Item) o1).sortYear, ((Item) o2).sortYear);
+                    if (result == 0) {
+                        result = nullToEmpty(((Item) o1).publicationDate).compareTo(nullToEmpty(((Item) o2).publicationDate));
                     }
                     break;
-
-
                 case DATE_ADDED:
-                    try {
-                        String date1 = ((Item) o1).dateAdded;
-                        String date2 = ((Item) o2).dateAdded;
-
-                        // --- 开始健壮的日期比较逻辑 ---
-
-                        // 1. 优先提取年份进行比较
-                        Integer dyear1 = Utils.extractYear(date1);
-                        Integer dyear2 = Utils.extractYear(date2);
-
-                        // 2. 处理一个有年份一个没有的情况
-                        if (dyear1 != null && dyear2 == null) {
-                            result = 1; // 有年份的排在前面 (更明确的信息)
-                            break;
-                        }
-                        if (dyear1 == null && dyear2 != null) {
-                            result = -1; // 有年份的排在前面
-                            break;
-                        }
-
-                        // 3. 如果两个都有年份，直接比较年份
-                        if (dyear1 != null && dyear2 != null) {
-                            // 如果年份不相等，直接得出结论
-                            if (!dyear1.equals(dyear2)) {
-                                result = dyear1.compareTo(dyear2);
-                                break;
-                            }
-                            // 如果年份相等，回退到字符串比较，以便处理 "2024-05" vs "2024-06"
-                            // 这种格式良好的字符串比较是有效的
-                        }
-
-                        // 4. 回退：如果两个都没有有效年份，或年份相同，则进行字符串比较
-                        // 确保 null 安全
-                        if (date1 == null) date1 = "";
-                        if (date2 == null) date2 = "";
-                        result = date1.compareTo(date2);
-                    }catch (Exception e){
-
-                    }
+                    result = Long.compare(((Item) o1).dateAddedEpoch, ((Item) o2).dateAddedEpoch);
                     break;
                 case FILE_SIZE:
-                    long size1 = (o1 instanceof Item && "attachment".equals(((Item)o1).itemType)) ? ((Item) o1).filesize : -1;
-                    long size2 = (o2 instanceof Item && "attachment".equals(((Item)o2).itemType)) ? ((Item) o2).filesize : -1;
-                    result = Long.compare(size1, size2);
+                    // Same order as ItemQueries: non-attachments apart, then by size.
+                    result = Boolean.compare("attachment".equals(((Item) o1).itemType), "attachment".equals(((Item) o2).itemType));
+                    if (result == 0) {
+                        result = Long.compare(((Item) o1).filesize, ((Item) o2).filesize);
+                    }
+                    break;
+                case NAME:
+                default:
+                    String name1 = (o1 instanceof Collection) ? SortKeys.fold(((Collection) o1).name) : nullToEmpty(((Item) o1).sortTitle);
+                    String name2 = (o2 instanceof Collection) ? SortKeys.fold(((Collection) o2).name) : nullToEmpty(((Item) o2).sortTitle);
+                    result = name1.compareTo(name2);
                     break;
             }
             return mSortOrder == SortOrder.ASC ? result : -result;
         });
     }
 
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
     private void renderTopLevelCollectionsList() {
         List<Object> listItems = new ArrayList<>();
         if (mRecentItemsCache != null && !mRecentItemsCache.isEmpty()) {
@@ -656,19 +629,7 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
             listItems.add(recentItemsText);
         }
 
-        int allItemsCount;
-        if (mSettingsManager.getHideAttachmentsInAllItems()) {
-            int count = 0;
-            for (Item item : mAllItemsCache) {
-                if (!"attachment".equals(item.itemType)) {
-                    count++;
-                }
-            }
-            allItemsCount = count;
-        } else {
-            allItemsCount = mAllItemsCache.size();
-        }
-        String allItemsText = "All Items (" + allItemsCount + ")";
+        String allItemsText = "All Items (" + getAllItemsCount() + ")";
         listItems.add(allItemsText);
 
         List<Collection> topLevelCollections = new ArrayList<>();
@@ -686,28 +647,31 @@ public class MainActivity extends AppCompatActivity implements ListAdapter.OnAct
     }
 
     private void renderAllItemsList() {
-        List<Item> itemsToDisplay;
-        if (mSettingsManager.getHideAttachmentsInAllItems()) {
-            itemsToDisplay = new ArrayList<>();
-            for (Item item : mAllItemsCache) {
-                if (!"attachment".equals(item.itemType)) {
-                    itemsToDisplay.add(item);
-                }
-            }
-        } else {
-            itemsToDisplay = new ArrayList<>(mAllItemsCache);
+        // Sorting, the attachment filter and search all run in SQL; only the visible window is loaded.
+        if (mMainViewModel.setAllItemsQuery(mSortField, mSortOrder, mSettingsManager.getHideAttachmentsInAllItems(), mCurrentSearchQuery)) {
+            mScrollAllItemsToTop = true;
         }
+        updateAllItemsTitle();
+        mCurrentlyDisplayedItems = new ArrayList<>();
+    }
 
-        List<Object> listItems = new ArrayList<>(itemsToDisplay);
-        sortList(listItems);
-
-        processPinyinForList(listItems);
+    private void updateAllItemsTitle() {
+        mToolbar.setTitle("All Items (" + getAllItemsCount() + ")");
+    }
 
+    private int getAllItemsCount() {
+        if (mSettingsManager.getHideAttachmentsInAllItems()) {
+            return mItemCounts.total - mItemCounts.attachments;
+        }
+        return mItemCounts.total;
+    }
 
-        mToolbar.setTitle("All Items (" + listItems.size() + ")");
-        mCurrentlyDisplayedItems = new ArrayList<>(listItems);
-        mAdapter.setData(listItems);
+    private boolean isShowingRootCollections() {
+        return !mNavigationStack.isEmpty() && NAV_KEY_ROOT_COLLECTIONS.equals(mNavigationStack.peek().key);
+    }
 
+    private boolean isShowingAllItems() {
+        return !mNavigationStack.isEmpty() && NAV_KEY_ALL_ITEMS.equals(mNavigationStack.peek().key);
     }
 
     private void renderCollectionOrItemContent(String key, String title) {
@@ -1,29 +1,85 @@
 package com.hexin.zbook;
 
 import android.app.Application;
-import android.os.AsyncTask;
 
+import androidx.core.util.Consumer;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
-
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
+import androidx.lifecycle.ViewModelKt;
+import androidx.paging.Pager;
+import androidx.paging.PagingConfig;
+import androidx.paging.PagingData;
+import androidx.paging.PagingLiveData;
+
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import kotlinx.coroutines.CoroutineScope;
+import kotlinx.coroutines.CoroutineScopeKt;
+import kotlinx.coroutines.Job;
+import kotlinx.coroutines.JobKt;
 
 public class MainViewModel extends AndroidViewModel {
 
+    private static final long SYNC_REFRESH_INTERVAL_MS = 5000;
+    private static final int ALL_ITEMS_PAGE_SIZE = 60;
+    private static final int ALL_ITEMS_PREFETCH_DISTANCE = 120;
+    private static final int LIBRARY_SEARCH_LIMIT = 200;
+
     private final SyncManager mSyncManager;
     private final SyncRepository mRepository;
     private final DownloadManager mDownloadManager;
     private final SettingsManager mSettingsManager;
     private final LiveData<List<Collection>> mAllCollections;
-    private final LiveData<List<Item>> mAllItems;
+    private final LiveData<ItemCounts> mItemCounts;
+    private final MutableLiveData<AllItemsQuery> mAllItemsQuery = new MutableLiveData<>();
+    private final LiveData<PagingData<Item>> mAllItemsPaged;
+    // Holds the cached Pager of the current All Items query; cancelled when the query changes.
+    private CoroutineScope mAllItemsScope;
+    private final MutableLiveData<String> mLibrarySearchQuery = new MutableLiveData<>();
+    private final LiveData<List<Item>> mLibrarySearchResults;
     private final LiveData<List<CollectionCount>> mCollectionCounts;
     private LiveData<List<Item>> mRecentItems;
     // New container class for collection content
 
     private final ItemDao mItemDao; // <--- 新增
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(); // <--- 新增
+    private final AppExecutors mExecutors = AppExecutors.getInstance();
+    // Only touched on the main thread.
+    private Future<?> mPendingNavigationLoad;
+    private int mNavigationGeneration;
+    private boolean mCleared;
+
+    private static class AllItemsQuery {
+        final SortField sortField;
+        final SortOrder sortOrder;
+        final boolean hideAttachments;
+        final String filter;
+
+        AllItemsQuery(SortField sortField, SortOrder sortOrder, boolean hideAttachments, String filter) {
+            this.sortField = sortField;
+            this.sortOrder = sortOrder;
+            this.hideAttachments = hideAttachments;
+            this.filter = filter != null ? filter : "";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AllItemsQuery)) return false;
+            AllItemsQuery other = (AllItemsQuery) o;
+            return sortField == other.sortField && sortOrder == other.sortOrder
+                    && hideAttachments == other.hideAttachments && filter.equals(other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sortField, sortOrder, hideAttachments, filter);
+        }
+    }
 
     public static class CollectionContent {
         public final List<Collection> subCollections;
@@ -49,10 +105,37 @@ public class MainViewModel extends AndroidViewModel {
         mSyncManager = new SyncManager(application, db);
         mRepository = new SyncRepository(application);
         mDownloadManager = DownloadManager.getInstance(application);
-        mAllCollections = mRepository.getAllCollections();
-        mAllItems = mRepository.getAllItems();
-        mCollectionCounts = mRepository.getCollectionCounts();
-        mRecentItems = mItemDao.getRecentItems(); // <--- 新增
+        // While a sync is writing, every committed batch would otherwise re-run these queries
+        // and make MainActivity re-render (and re-sort) the whole list.
+        LiveData<Boolean> isSyncing = mSyncManager.isSyncing();
+        mAllCollections = new SyncThrottledLiveData<>(mRepository.getAllCollections(), isSyncing, SYNC_REFRESH_INTERVAL_MS);
+        mItemCounts = new SyncThrottledLiveData<>(mItemDao.getItemCounts(), isSyncing, SYNC_REFRESH_INTERVAL_MS);
+        mCollectionCounts = new SyncThrottledLiveData<>(mRepository.getCollectionCounts(), isSyncing, SYNC_REFRESH_INTERVAL_MS);
+        mRecentItems = new SyncThrottledLiveData<>(mItemDao.getRecentItems(), isSyncing, SYNC_REFRESH_INTERVAL_MS);
+
+        // A new Pager per sort/filter, so a changed query loads from the top. Each one is
+        // cached in a child of viewModelScope that the next query cancels; cached in
+        // viewModelScope itself, every earlier Pager would keep collecting until onCleared.
+        // The PagingSource itself invalidates on table changes.
+        mAllItemsPaged = Transformations.switchMap(mAllItemsQuery, query -> {
+            if (mAllItemsScope != null) CoroutineScopeKt.cancel(mAllItemsScope, null);
+            CoroutineScope parent = ViewModelKt.getViewModelScope(this);
+            Job parentJob = parent.getCoroutineContext().get(Job.Key);
+            mAllItemsScope = CoroutineScopeKt.CoroutineScope(parent.getCoroutineContext().plus(JobKt.Job(parentJob)));
+
+            Pager<Integer, Item> pager = new Pager<>(
+                    new PagingConfig(ALL_ITEMS_PAGE_SIZE, ALL_ITEMS_PREFETCH_DISTANCE, false),
+                    () -> mItemDao.getItemsPaged(ItemQueries.allItems(query.sortField, query.sortOrder, query.hideAttachments, query.filter)));
+            return PagingLiveData.cachedIn(PagingLiveData.getLiveData(pager), mAllItemsScope);
+        });
+
+        mLibrarySearchResults = Transformations.switchMap(mLibrarySearchQuery, query -> {
+            String match = ItemQueries.matchExpression(query);
+            if (match == null) {
+                return new MutableLiveData<>(Collections.emptyList());
+            }
+            return mItemDao.search(match, ItemQueries.titlePrefixPattern(query), LIBRARY_SEARCH_LIMIT);
+        });
     }
 
     public LiveData<List<Item>> getRecentItems() {
@@ -61,7 +144,7 @@ public class MainViewModel extends AndroidViewModel {
 
     public void addRecentItem(String itemKey) {
         // 为了避免阻塞主线程，我们在一个后台线程中执行数据库的写入操作
-        executor.execute(() -> {
+        mExecutors.diskWrite().execute(() -> {
             mItemDao.updateLastOpenedTimestamp(itemKey, System.currentTimeMillis());
         });
     }
@@ -77,8 +160,39 @@ public class MainViewModel extends AndroidViewModel {
         return mAllCollections;
     }
 
-    public LiveData<List<Item>> getAllItems() {
-        return mAllItems;
+    public LiveData<ItemCounts> getItemCounts() {
+        return mItemCounts;
+    }
+
+    public LiveData<PagingData<Item>> getAllItemsPaged() {
+        return mAllItemsPaged;
+    }
+
+    /**
+     * Sets the sort order and filter of the paged "All Items" list. Re-submitting an
+     * identical query keeps the current pager, so scroll position survives re-renders.
+     *
+     * @return whether the query changed, in which case the list reloads from the top
+     */
+    public boolean setAllItemsQuery(SortField sortField, SortOrder sortOrder, boolean hideAttachments, String filter) {
+        AllItemsQuery query = new AllItemsQuery(sortField, sortOrder, hideAttachments, filter);
+        if (query.equals(mAllItemsQuery.getValue())) return false;
+        mAllItemsQuery.setValue(query);
+        return true;
+    }
+
+    /**
+     * Best matches for {@code query} across the whole library, from the items_fts index.
+     */
+    public LiveData<List<Item>> getLibrarySearchResults() {
+        return mLibrarySearchResults;
+    }
+
+    public void setLibrarySearchQuery(String query) {
+        String value = query != null ? query.trim() : "";
+        if (!value.equals(mLibrarySearchQuery.getValue())) {
+            mLibrarySearchQuery.setValue(value);
+        }
     }
 
     public LiveData<List<CollectionCount>> getCollectionCounts() {
@@ -90,23 +204,57 @@ public class MainViewModel extends AndroidViewModel {
     }
 
     public void getChildrenOfItem(String itemKey, final OnItemsLoadedListener listener) {
-        new GetChildrenAsyncTask(mRepository, listener).execute(itemKey);
+        loadForNavigation(() -> mRepository.getChildrenOfItemSync(itemKey), listener::onItemsLoaded);
     }
 
     // New unified method to get all content for a collection
     public void getCollectionContent(String collectionKey, final OnCollectionContentLoadedListener listener) {
-        new GetCollectionContentAsyncTask(mRepository, listener).execute(collectionKey);
+        loadForNavigation(() -> new CollectionContent(
+                        mRepository.getSubCollectionsSync(collectionKey),
+                        mRepository.getItemsByCollectionSync(collectionKey)),
+                listener::onContentLoaded);
+    }
+
+    /**
+     * Runs a navigation query on the disk-read pool and hands the result to {@code callback}
+     * on the main thread. A newer navigation supersedes (and cancels) the previous one.
+     */
+    private <T> void loadForNavigation(Callable<T> query, Consumer<T> callback) {
+        if (mPendingNavigationLoad != null) mPendingNavigationLoad.cancel(true);
+        final int generation = ++mNavigationGeneration;
+        mPendingNavigationLoad = mExecutors.diskRead().submit(() -> {
+            T result = query.call();
+            mExecutors.mainThread().execute(() -> {
+                if (generation == mNavigationGeneration && !mCleared) {
+                    callback.accept(result);
+                }
+            });
+            return null;
+        });
+    }
+
+    /**
+     * @param userInitiated false for automatic syncs such as on app start, which are
+     *                      skipped if the library was synced recently
+     */
+    public void syncData(String apiKey, String userId, boolean userInitiated) {
+        updateSyncApi(userId);
+        mSyncManager.requestSync(apiKey, userInitiated);
+    }
+
+    /** Brings the local library back in line with the server without clearing it. */
+    public void reconcileData(String apiKey, String userId) {
+        updateSyncApi(userId);
+        mSyncManager.requestReconcile(apiKey);
     }
 
-    public void syncData(String apiKey, String userId) {
+    private void updateSyncApi(String userId) {
         String baseUrl = mSettingsManager.getZoteroApiBaseUrl();
         if (!baseUrl.endsWith("/")) baseUrl += "/";
         String userUrl = baseUrl + "users/" + userId + "/";
         
-        ApiClient.resetClient(userUrl);
-        ZoteroApi api = ApiClient.getClient().create(ZoteroApi.class);
+        ZoteroApi api = ApiClient.getClient(userUrl).create(ZoteroApi.class);
         mSyncManager.updateApi(api);
-        mSyncManager.startSync(apiKey);
     }
 
     public void cancelSync() {
@@ -118,56 +266,16 @@ public class MainViewModel extends AndroidViewModel {
         mSyncManager.clearSyncMetadata();
     }
 
-    public interface OnItemsLoadedListener {
-        void onItemsLoaded(List<Item> items);
-    }
-
-    // This async task remains for fetching item children (attachments/notes)
-    private static class GetChildrenAsyncTask extends AsyncTask<String, Void, List<Item>> {
-        private SyncRepository mSyncRepository;
-        private OnItemsLoadedListener mListener;
-
-        GetChildrenAsyncTask(SyncRepository repo, OnItemsLoadedListener listener) {
-            mSyncRepository = repo;
-            mListener = listener;
-        }
-
-        @Override
-        protected List<Item> doInBackground(String... params) {
-            return mSyncRepository.getChildrenOfItemSync(params[0]);
-        }
-
-        @Override
-        protected void onPostExecute(List<Item> result) {
-            if (mListener != null) {
-                mListener.onItemsLoaded(result);
-            }
-        }
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        mCleared = true;
+        if (mPendingNavigationLoad != null) mPendingNavigationLoad.cancel(true);
+        // The SyncManager belongs to this ViewModel; already committed batches are kept.
+        mSyncManager.cancelSync();
     }
 
-    // New unified AsyncTask
-    private static class GetCollectionContentAsyncTask extends AsyncTask<String, Void, CollectionContent> {
-        private final SyncRepository mSyncRepository;
-        private final OnCollectionContentLoadedListener mListener;
-
-        GetCollectionContentAsyncTask(SyncRepository repo, OnCollectionContentLoadedListener listener) {
-            mSyncRepository = repo;
-            mListener = listener;
-        }
-
-        @Override
-        protected CollectionContent doInBackground(String... params) {
-            String key = params[0];
-            List<Collection> subCollections = mSyncRepository.getSubCollectionsSync(key);
-            List<Item> items = mSyncRepository.getItemsByCollectionSync(key);
-            return new CollectionContent(subCollections, items);
-        }
-
-        @Override
-        protected void onPostExecute(CollectionContent result) {
-            if (mListener != null) {
-                mListener.onContentLoaded(result);
-            }
-        }
+    public interface OnItemsLoadedListener {
+        void onItemsLoaded(List<Item> items);
     }
 }
@@ -0,0 +1,121 @@
+package com.hexin.zbook;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.paging.ItemSnapshotList;
+import androidx.paging.PagingDataAdapter;
+import androidx.recyclerview.widget.DiffUtil;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import kotlin.Unit;
+
+/**
+ * Adapter for the paged "All Items" list. Only the loaded window of items is kept
+ * in memory; rows are bound with the same ViewHolder as {@link ListAdapter}.
+ */
+public class PagedItemAdapter extends PagingDataAdapter<Item, ListAdapter.ViewHolder> {
+
+    private static final DiffUtil.ItemCallback<Item> DIFF_CALLBACK = new DiffUtil.ItemCallback<Item>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Item oldItem, @NonNull Item newItem) {
+            return oldItem.key.equals(newItem.key);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Item oldItem, @NonNull Item newItem) {
+            return oldItem.version == newItem.version
+                    && oldItem.lastOpenedTimestamp == newItem.lastOpenedTimestamp
+                    && oldItem.filesize == newItem.filesize;
+        }
+
+        @Override
+        public Object getChangePayload(@NonNull Item oldItem, @NonNull Item newItem) {
+            if (oldItem.version == newItem.version && oldItem.filesize == newItem.filesize) {
+                return ListAdapter.PAYLOAD_SECONDARY_TEXT;
+            }
+            return null;
+        }
+    };
+
+    private final DownloadManager mDownloadManager;
+    // Position of each loaded item by key, rebuilt when pages change rather than per progress batch.
+    private Map<String, Integer> mPositions = new HashMap<>();
+    private ListAdapter.OnItemClickListener mItemClickListener;
+    private ListAdapter.OnActionClickListener mActionClickListener;
+
+    public PagedItemAdapter(LifecycleOwner lifecycleOwner, DownloadManager downloadManager) {
+        super(DIFF_CALLBACK);
+        mDownloadManager = downloadManager;
+        addOnPagesUpdatedListener(() -> {
+            // snapshot() holds only the loaded window; placeholders come back as null.
+            ItemSnapshotList<Item> loaded = snapshot();
+            Map<String, Integer> positions = new HashMap<>(loaded.size() * 2);
+            for (int i = 0; i < loaded.size(); i++) {
+                Item item = loaded.get(i);
+                if (item != null) positions.put(item.key, i);
+            }
+            mPositions = positions;
+            return Unit.INSTANCE;
+        });
+        downloadManager.getProgressUpdates().observe(lifecycleOwner, this::onProgressUpdates);
+    }
+
+    private void onProgressUpdates(Map<String, DownloadManager.DownloadProgress> changed) {
+        if (changed == null) return;
+        int count = getItemCount();
+        for (String key : changed.keySet()) {
+            Integer position = mPositions.get(key);
+            if (position != null && position < count) notifyItemChanged(position, ListAdapter.PAYLOAD_PROGRESS);
+        }
+    }
+
+    public void setOnItemClickListener(ListAdapter.OnItemClickListener listener) {
+        mItemClickListener = listener;
+    }
+
+    public void setOnActionClickListener(ListAdapter.OnActionClickListener listener) {
+        mActionClickListener = listener;
+    }
+
+    @NonNull
+    @Override
+    public ListAdapter.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.download_list_item, parent, false);
+        return new ListAdapter.ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ListAdapter.ViewHolder holder, int position) {
+        Item item = getItem(position);
+        if (item == null) {
+            // Placeholders are disabled, so there is nothing to show.
+            return;
+        }
+        holder.bind(item, mDownloadManager, mItemClickListener, mActionClickListener, Collections.emptyMap());
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ListAdapter.ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        Item item = getItem(position);
+        if (item != null && payloads.contains(ListAdapter.PAYLOAD_SECONDARY_TEXT)) {
+            holder.bindSecondaryText(item);
+            holder.itemView.setOnClickListener(v -> {
+                if (mItemClickListener != null) mItemClickListener.onItemClick(item);
+            });
+            if (payloads.contains(ListAdapter.PAYLOAD_PROGRESS)) holder.bindProgress();
+        } else if (item != null && payloads.contains(ListAdapter.PAYLOAD_PROGRESS)) {
+            holder.bindProgress();
+        } else {
+            onBindViewHolder(holder, position);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.hexin.zbook;
+
+import android.util.Log;
+
+import net.sourceforge.pinyin4j.PinyinHelper;
+import net.sourceforge.pinyin4j.format.HanyuPinyinCaseType;
+import net.sourceforge.pinyin4j.format.HanyuPinyinOutputFormat;
+import net.sourceforge.pinyin4j.format.HanyuPinyinToneType;
+import net.sourceforge.pinyin4j.format.exception.BadHanyuPinyinOutputFormatCombination;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pinyin of the CJK Unified Ideographs block (U+4E00..U+9FFF) as flat primitive
+ * arrays. The table is generated from pinyin4j the first time it is needed,
+ * written to {@code pinyin.table} and memory-mapped on later launches.
+ *
+ * <pre>
+ * int    magic, first code point, count, syllable count, reading count
+ * char[] initial of the first reading, 0 if the character has none   [count]
+ * int[]  start of each character's readings in the reading array    [count + 1]
+ * short[] readings, as indices into the syllable list               [reading count]
+ * syllables, each as one length byte followed by ASCII
+ * </pre>
+ */
+public final class PinyinTable {
+
+    private static final String TAG = "PinyinTable";
+    private static final String FILE_NAME = "pinyin.table";
+    private static final int MAGIC = 0x50595431; // "PYT1"
+
+    static final char FIRST = '\u4e00';
+    static final char LAST = '\u9fff';
+
+    private static volatile File sDirectory;
+    private static volatile PinyinTable sInstance;
+
+    private final CharBuffer mInitials;
+    private final IntBuffer mReadingOffsets;
+    private final ShortBuffer mReadings;
+    private final String[] mSyllables;
+
+    private PinyinTable(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FIRST) {
+            throw new IOException("Not a pinyin table");
+        }
+        int count = buffer.getInt();
+        int syllableCount = buffer.getInt();
+        int readingCount = buffer.getInt();
+
+        mInitials = slice(buffer, count * 2).asCharBuffer();
+        mReadingOffsets = slice(buffer, (count + 1) * 4).asIntBuffer();
+        mReadings = slice(buffer, readingCount * 2).asShortBuffer();
+
+        mSyllables = new String[syllableCount];
+        byte[] bytes = new byte[255];
+        for (int i = 0; i < syllableCount; i++) {
+            int length = buffer.get() & 0xFF;
+            buffer.get(bytes, 0, length);
+            mSyllables[i] = new String(bytes, 0, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Sets where the generated table is kept. Without a directory the table is
+     * rebuilt in memory on every launch.
+     */
+    static void setDirectory(File directory) {
+        sDirectory = directory;
+    }
+
+    static PinyinTable get() {
+        if (sInstance == null) {
+            synchronized (PinyinTable.class) {
+                if (sInstance == null) {
+                    sInstance = load();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    static boolean isCjk(char c) {
+        return c >= FIRST && c <= LAST;
+    }
+
+    /** First letter of the character's most common reading, or 0 if it has none. */
+    char initial(char c) {
+        return isCjk(c) ? mInitials.get(c - FIRST) : 0;
+    }
+
+    /** The character's most common reading, or null if it has none. */
+    String syllable(char c) {
+        if (!isCjk(c)) return null;
+        int start = mReadingOffsets.get(c - FIRST);
+        return start < mReadingOffsets.get(c - FIRST + 1) ? mSyllables[mReadings.get(start)] : null;
+    }
+
+    /** All readings of a polyphonic character, most common first. */
+    String[] readings(char c) {
+        if (!isCjk(c)) return new String[0];
+        int start = mReadingOffsets.get(c - FIRST);
+        int end = mReadingOffsets.get(c - FIRST + 1);
+        String[] readings = new String[end - start];
+        for (int i = start; i < end; i++) {
+            readings[i - start] = mSyllables[mReadings.get(i)];
+        }
+        return readings;
+    }
+
+    private static PinyinTable load() {
+        File directory = sDirectory;
+        File file = directory != null ? new File(directory, FILE_NAME) : null;
+        if (file != null && file.isFile()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                return new PinyinTable(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable pinyin table", e);
+                file.delete();
+            }
+        }
+
+        byte[] table = generate();
+        if (file != null) {
+            File tmp = new File(directory, FILE_NAME + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(table);
+                out.getFD().sync();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write the pinyin table", e);
+            }
+            if (!tmp.renameTo(file)) tmp.delete();
+        }
+        try {
+            return new PinyinTable(ByteBuffer.wrap(table));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Builds the table bytes from pinyin4j. */
+    static byte[] generate() {
+        HanyuPinyinOutputFormat format = new HanyuPinyinOutputFormat();
+        format.setCaseType(HanyuPinyinCaseType.LOWERCASE);
+        format.setToneType(HanyuPinyinToneType.WITHOUT_TONE);
+
+        int count = LAST - FIRST + 1;
+        char[] initials = new char[count];
+        int[] offsets = new int[count + 1];
+        List<Short> readings = new ArrayList<>();
+        List<String> syllables = new ArrayList<>();
+        Map<String, Short> syllableIds = new HashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            offsets[i] = readings.size();
+            String[] pinyin;
+            try {
+                pinyin = PinyinHelper.toHanyuPinyinStringArray((char) (FIRST + i), format);
+            } catch (BadHanyuPinyinOutputFormatCombination e) {
+                pinyin = null;
+            }
+            if (pinyin == null) continue;
+            List<String> seen = new ArrayList<>(pinyin.length);
+            for (String syllable : pinyin) {
+                // Readings that only differ in tone collapse into one.
+                if (syllable == null || syllable.isEmpty() || seen.contains(syllable)) continue;
+                seen.add(syllable);
+                Short id = syllableIds.get(syllable);
+                if (id == null) {
+                    id = (short) syllables.size();
+                    syllableIds.put(syllable, id);
+                    syllables.add(syllable);
+                }
+                readings.add(id);
+            }
+            if (!seen.isEmpty()) initials[i] = seen.get(0).charAt(0);
+        }
+        offsets[count] = readings.size();
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(count * 8);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(FIRST);
+            out.writeInt(count);
+            out.writeInt(syllables.size());
+            out.writeInt(readings.size());
+            for (char initial : initials) out.writeChar(initial);
+            for (int offset : offsets) out.writeInt(offset);
+            for (short reading : readings) out.writeShort(reading);
+            for (String syllable : syllables) {
+                byte[] ascii = syllable.getBytes(StandardCharsets.US_ASCII);
+                out.writeByte(ascii.length);
+                out.write(ascii);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+}
@@ -1,14 +1,9 @@
     package com.hexin.zbook;
 
-    import net.sourceforge.pinyin4j.PinyinHelper;
-    import net.sourceforge.pinyin4j.format.HanyuPinyinCaseType;
-    import net.sourceforge.pinyin4j.format.HanyuPinyinOutputFormat;    import net.sourceforge.pinyin4j.format.HanyuPinyinToneType;
-    import net.sourceforge.pinyin4j.format.exception.BadHanyuPinyinOutputFormatCombination;
-
     public class PinyinUtils {
 
         /**
-         * 获取中文字符串的拼音首字母, 英文字符不变
+         * 获取中文字符串的拼音首字母, 非汉字字符（包括带重音的拉丁字母）原样保留
          *
          * @param chinese 汉字串
          * @return 汉语拼音首字母
@@ -17,26 +12,63 @@
             if (chinese == null) {
                 return null;
             }
-            StringBuilder pybf = new StringBuilder();
-            char[] arr = chinese.toCharArray();
-            HanyuPinyinOutputFormat defaultFormat = new HanyuPinyinOutputFormat();
-            defaultFormat.setCaseType(HanyuPinyinCaseType.LOWERCASE);
-            defaultFormat.setToneType(HanyuPinyinToneType.WITHOUT_TONE);
-            for (char c : arr) {
-                if (c > 128) { // 如果是汉字
-                    try {
-                        String[] pinyinArray = PinyinHelper.toHanyuPinyinStringArray(c, defaultFormat);
-                        if (pinyinArray != null && pinyinArray.length > 0) {
-                            pybf.append(pinyinArray[0].charAt(0));
-                        }
-                    } catch (BadHanyuPinyinOutputFormatCombination e) {
-                        e.printStackTrace();
-                    }
-                } else { // 如果是 ASCII 字符
+            PinyinTable table = null;
+            StringBuilder pybf = new StringBuilder(chinese.length());
+            for (int i = 0; i < chinese.length(); i++) {
+                char c = chinese.charAt(i);
+                if (!PinyinTable.isCjk(c)) {
                     pybf.append(c);
+                    continue;
+                }
+                if (table == null) table = PinyinTable.get();
+                char initial = table.initial(c);
+                if (initial != 0) {
+                    pybf.append(initial);
                 }
             }
             return pybf.toString();
         }
+
+        /**
+         * 获取中文字符串的完整拼音，每个汉字的音节之间用空格分隔, 非汉字字符原样保留
+         *
+         * @param chinese 汉字串
+         * @return 汉语拼音全拼
+         */
+        public static String getFullSpell(String chinese) {
+            if (chinese == null) {
+                return null;
+            }
+            PinyinTable table = null;
+            StringBuilder pybf = new StringBuilder(chinese.length() * 4);
+            for (int i = 0; i < chinese.length(); i++) {
+                char c = chinese.charAt(i);
+                if (!PinyinTable.isCjk(c)) {
+                    if (c != ' ' || pybf.length() == 0 || pybf.charAt(pybf.length() - 1) != ' ') pybf.append(c);
+                    continue;
+                }
+                if (table == null) table = PinyinTable.get();
+                String pinyin = table.syllable(c);
+                if (pinyin != null) {
+                    if (pybf.length() > 0 && pybf.charAt(pybf.length() - 1) != ' ') pybf.append(' ');
+                    pybf.append(pinyin).append(' ');
+                }
+            }
+            return pybf.toString().trim();
+        }
+
+        /**
+         * 为条目计算并保存拼音列。附件使用文件名，其它条目使用标题。
+         */
+        static void apply(Item item) {
+            String source = "attachment".equals(item.itemType) && item.filename != null && !item.filename.isEmpty()
+                    ? item.filename : item.title;
+            if (source == null || source.isEmpty()) {
+                item.titlePinyin = "";
+                item.titlePinyinFull = "";
+                return;
+            }
+            item.titlePinyin = getFirstSpell(source);
+            item.titlePinyinFull = getFullSpell(source);
+        }
     }
-    
\ No newline at end of file
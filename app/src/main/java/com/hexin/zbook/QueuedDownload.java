@@ -0,0 +1,44 @@
+package com.hexin.zbook;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * An attachment waiting to be downloaded. Rows outlive the process, so
+ * {@link DownloadQueueWorker} can pick the queue up again after Android kills it.
+ */
+@Entity(tableName = "download_queue", indices = {@Index("enqueuedAt")})
+public class QueuedDownload {
+
+    @PrimaryKey
+    @NonNull
+    @ColumnInfo(name = "itemKey")
+    public String itemKey;
+
+    /** A {@link DownloadScheduler.Lane} ordinal. */
+    @ColumnInfo(name = "lane")
+    public int lane;
+
+    @ColumnInfo(name = "enqueuedAt")
+    public long enqueuedAt;
+
+    public QueuedDownload() {
+        itemKey = "";
+    }
+
+    @Ignore
+    public QueuedDownload(@NonNull String itemKey, DownloadScheduler.Lane lane, long enqueuedAt) {
+        this.itemKey = itemKey;
+        this.lane = lane.ordinal();
+        this.enqueuedAt = enqueuedAt;
+    }
+
+    public DownloadScheduler.Lane getLane() {
+        DownloadScheduler.Lane[] lanes = DownloadScheduler.Lane.values();
+        return lane >= 0 && lane < lanes.length ? lanes[lane] : DownloadScheduler.Lane.BULK;
+    }
+}
@@ -28,6 +28,8 @@ public class SettingsActivity extends AppCompatActivity {
     private TextInputEditText mPasswordEditText;
     private TextInputEditText mThresholdEditText;
     private SwitchMaterial mHideAttachmentsSwitch;
+    private SwitchMaterial mUnmeteredOnlySwitch;
+    private SwitchMaterial mChargingOnlySwitch;
     private Button mTestZoteroButton;
     private Button mTestWebdavButton;
     private Button mSaveButton;
@@ -53,6 +55,8 @@ public class SettingsActivity extends AppCompatActivity {
         mPasswordEditText = findViewById(R.id.edit_text_webdav_password);
         mThresholdEditText = findViewById(R.id.edit_text_download_threshold);
         mHideAttachmentsSwitch = findViewById(R.id.switch_hide_attachments);
+        mUnmeteredOnlySwitch = findViewById(R.id.switch_download_unmetered_only);
+        mChargingOnlySwitch = findViewById(R.id.switch_download_charging_only);
         mSaveButton = findViewById(R.id.button_save_settings);
         mTestZoteroButton = findViewById(R.id.button_test_zotero);
         mTestWebdavButton = findViewById(R.id.button_test_webdav);
@@ -90,6 +94,8 @@ public class SettingsActivity extends AppCompatActivity {
         mPasswordEditText.setText(mSettingsManager.getWebDavPassword());
         mThresholdEditText.setText(String.valueOf(mSettingsManager.getDownloadSizeThresholdMb()));
         mHideAttachmentsSwitch.setChecked(mSettingsManager.getHideAttachmentsInAllItems());
+        mUnmeteredOnlySwitch.setChecked(mSettingsManager.getDownloadOnlyOnUnmetered());
+        mChargingOnlySwitch.setChecked(mSettingsManager.getDownloadOnlyWhileCharging());
     }
 
     private void saveSettings() {
@@ -107,6 +113,11 @@ public class SettingsActivity extends AppCompatActivity {
             mSettingsManager.setDownloadSizeThresholdMb(-1);
         }
 
+        mSettingsManager.setDownloadOnlyOnUnmetered(mUnmeteredOnlySwitch.isChecked());
+        mSettingsManager.setDownloadOnlyWhileCharging(mChargingOnlySwitch.isChecked());
+        // Queued downloads pick up the new constraints.
+        DownloadManager.getInstance(this).onQueueConstraintsChanged();
+
         Toast.makeText(this, "Settings saved", Toast.LENGTH_SHORT).show();
         finish();
     }
@@ -18,6 +18,18 @@ public class SettingsManager {
     private static final String KEY_HIDE_ATTACHMENTS_IN_ALL_ITEMS = "hideAttachmentsInAllItems";
     private static final String KEY_SORT_FIELD = "sort_field";
     private static final String KEY_SORT_ORDER = "sort_order";
+    private static final String KEY_SYNC_CONCURRENCY = "syncConcurrency";
+    private static final int DEFAULT_SYNC_CONCURRENCY = 4;
+    private static final String KEY_SYNC_COMMIT_EVERY_PAGES = "syncCommitEveryPages";
+    private static final int DEFAULT_SYNC_COMMIT_EVERY_PAGES = 10;
+    private static final String KEY_MIN_AUTO_SYNC_INTERVAL_MINUTES = "minAutoSyncIntervalMinutes";
+    private static final int DEFAULT_MIN_AUTO_SYNC_INTERVAL_MINUTES = 15;
+    private static final String KEY_MIN_PARALLEL_DOWNLOADS = "minParallelDownloads";
+    private static final int DEFAULT_MIN_PARALLEL_DOWNLOADS = 1;
+    private static final String KEY_MAX_PARALLEL_DOWNLOADS = "maxParallelDownloads";
+    private static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 6;
+    private static final String KEY_DOWNLOAD_ONLY_ON_UNMETERED = "downloadOnlyOnUnmetered";
+    private static final String KEY_DOWNLOAD_ONLY_WHILE_CHARGING = "downloadOnlyWhileCharging";
     private final SharedPreferences mPrefs;
 
     private SettingsManager(Context context) {
@@ -114,4 +126,75 @@ public class SettingsManager {
     public void setHideAttachmentsInAllItems(boolean hide) {
         mPrefs.edit().putBoolean(KEY_HIDE_ATTACHMENTS_IN_ALL_ITEMS, hide).apply();
     }
+
+    /**
+     * Number of sync pages that may be requested from the Zotero API at the same time.
+     */
+    public int getSyncConcurrency() {
+        return Math.max(1, mPrefs.getInt(KEY_SYNC_CONCURRENCY, DEFAULT_SYNC_CONCURRENCY));
+    }
+
+    public void setSyncConcurrency(int concurrency) {
+        mPrefs.edit().putInt(KEY_SYNC_CONCURRENCY, concurrency).apply();
+    }
+
+    /**
+     * How many fetched pages are committed together during a sync; 0 commits once at the end.
+     */
+    public int getSyncCommitEveryPages() {
+        return Math.max(0, mPrefs.getInt(KEY_SYNC_COMMIT_EVERY_PAGES, DEFAULT_SYNC_COMMIT_EVERY_PAGES));
+    }
+
+    public void setSyncCommitEveryPages(int pages) {
+        mPrefs.edit().putInt(KEY_SYNC_COMMIT_EVERY_PAGES, pages).apply();
+    }
+
+    /**
+     * Minimum time between two automatic syncs, e.g. on app start; 0 checks every time.
+     * Syncs the user asks for are never held back.
+     */
+    public int getMinAutoSyncIntervalMinutes() {
+        return Math.max(0, mPrefs.getInt(KEY_MIN_AUTO_SYNC_INTERVAL_MINUTES, DEFAULT_MIN_AUTO_SYNC_INTERVAL_MINUTES));
+    }
+
+    public void setMinAutoSyncIntervalMinutes(int minutes) {
+        mPrefs.edit().putInt(KEY_MIN_AUTO_SYNC_INTERVAL_MINUTES, minutes).apply();
+    }
+
+    /**
+     * Bounds for the number of background downloads run against one server at the
+     * same time; the actual number adapts to the measured throughput in between.
+     */
+    public int getMinParallelDownloads() {
+        return Math.max(1, mPrefs.getInt(KEY_MIN_PARALLEL_DOWNLOADS, DEFAULT_MIN_PARALLEL_DOWNLOADS));
+    }
+
+    public void setMinParallelDownloads(int count) {
+        mPrefs.edit().putInt(KEY_MIN_PARALLEL_DOWNLOADS, count).apply();
+    }
+
+    public int getMaxParallelDownloads() {
+        return Math.max(getMinParallelDownloads(), mPrefs.getInt(KEY_MAX_PARALLEL_DOWNLOADS, DEFAULT_MAX_PARALLEL_DOWNLOADS));
+    }
+
+    public void setMaxParallelDownloads(int count) {
+        mPrefs.edit().putInt(KEY_MAX_PARALLEL_DOWNLOADS, count).apply();
+    }
+
+    // Constraints for the queued "download all" work; a tapped file always starts at once.
+    public boolean getDownloadOnlyOnUnmetered() {
+        return mPrefs.getBoolean(KEY_DOWNLOAD_ONLY_ON_UNMETERED, false);
+    }
+
+    public void setDownloadOnlyOnUnmetered(boolean onlyUnmetered) {
+        mPrefs.edit().putBoolean(KEY_DOWNLOAD_ONLY_ON_UNMETERED, onlyUnmetered).apply();
+    }
+
+    public boolean getDownloadOnlyWhileCharging() {
+        return mPrefs.getBoolean(KEY_DOWNLOAD_ONLY_WHILE_CHARGING, false);
+    }
+
+    public void setDownloadOnlyWhileCharging(boolean onlyCharging) {
+        mPrefs.edit().putBoolean(KEY_DOWNLOAD_ONLY_WHILE_CHARGING, onlyCharging).apply();
+    }
 }
@@ -73,7 +73,7 @@ public class SettingsViewModel extends AndroidViewModel {
         }
 
         mIsTesting.setValue(true);
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = HttpClients.api();
         Request.Builder requestBuilder = new Request.Builder()
                 .url(url)
                 .method("PROPFIND", RequestBody.create(null, new byte[0]));
@@ -0,0 +1,3 @@
+package com.hexin.zbook;
+
+public enum SortField { NAME, AUTHOR, PUBLISH_DATE, DATE_ADDED, FILE_SIZE }
@@ -0,0 +1,64 @@
+package com.hexin.zbook;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Normalized sort keys that are stored with every item at sync time, so that
+ * sorting is an indexed ORDER BY instead of a comparator that re-parses
+ * dates and titles on every comparison.
+ */
+public final class SortKeys {
+
+    private static final ThreadLocal<SimpleDateFormat> ISO_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    private SortKeys() {}
+
+    /**
+     * Fills the sort-key columns of {@code item} from its server fields.
+     * {@code sortCreator} is kept if the parser already set it from the first creator's surname.
+     */
+    public static void apply(Item item) {
+        item.sortTitle = fold(item.title);
+        if (item.sortCreator == null) {
+            item.sortCreator = fold(surnameFromCreators(item.creators));
+        }
+        Integer year = Utils.extractYear(item.publicationDate);
+        item.sortYear = year != null ? year : 0;
+        item.dateAddedEpoch = parseIsoDate(item.dateAdded);
+    }
+
+    public static String fold(String value) {
+        return value != null ? value.trim().toLowerCase(Locale.ROOT) : "";
+    }
+
+    /**
+     * Best-effort surname of the first creator in the joined "First Last, First Last" form,
+     * used when only the stored creators string is available (e.g. during a migration).
+     */
+    static String surnameFromCreators(String creators) {
+        if (creators == null || creators.isEmpty()) return "";
+        int comma = creators.indexOf(", ");
+        String first = (comma >= 0 ? creators.substring(0, comma) : creators).trim();
+        int space = first.lastIndexOf(' ');
+        return space >= 0 ? first.substring(space + 1) : first;
+    }
+
+    static long parseIsoDate(String date) {
+        if (date == null || date.isEmpty()) return 0;
+        try {
+            return ISO_DATE_FORMAT.get().parse(date).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+}
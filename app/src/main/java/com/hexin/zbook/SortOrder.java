@@ -0,0 +1,3 @@
+package com.hexin.zbook;
+
+public enum SortOrder { ASC, DESC }
@@ -0,0 +1,40 @@
+package com.hexin.zbook;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+/**
+ * How far the paged first sync of one object type ("items" or "collections") got.
+ * Pages before {@link #nextStart} are in the database; the checkpoint is only
+ * valid while the library is still at {@link #targetVersion}.
+ */
+@Entity(tableName = "sync_checkpoint")
+public class SyncCheckpoint {
+
+    @PrimaryKey
+    @NonNull
+    @ColumnInfo(name = "objectType")
+    public String objectType;
+
+    @ColumnInfo(name = "targetVersion")
+    public int targetVersion;
+
+    @ColumnInfo(name = "nextStart")
+    public int nextStart;
+
+    @ColumnInfo(name = "complete")
+    public boolean complete;
+
+    public SyncCheckpoint() {
+        objectType = "";
+    }
+
+    @Ignore
+    public SyncCheckpoint(@NonNull String objectType, int targetVersion) {
+        this.objectType = objectType;
+        this.targetVersion = targetVersion;
+    }
+}
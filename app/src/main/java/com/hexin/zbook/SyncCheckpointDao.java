@@ -0,0 +1,19 @@
+package com.hexin.zbook;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+public interface SyncCheckpointDao {
+
+    @Query("SELECT * FROM sync_checkpoint WHERE objectType = :objectType")
+    SyncCheckpoint get(String objectType);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void save(SyncCheckpoint checkpoint);
+
+    @Query("DELETE FROM sync_checkpoint")
+    void clearTable();
+}
@@ -3,7 +3,6 @@ package com.hexin.zbook;
 import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -11,7 +10,17 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import retrofit2.Response;
 
@@ -20,16 +29,70 @@ public class SyncManager {
     private static final String TAG = "SyncManager";
     private static final String PREFS_NAME = "SyncMetadata";
     private static final String KEY_LIBRARY_VERSION = "library_version";
+    private static final String KEY_LAST_SYNC_TIME = "last_sync_time";
     private static final int PAGE_SIZE = 100;
+    // The API's limit for itemKey= and collectionKey= lists.
+    static final int KEY_BATCH_SIZE = 50;
+
+    /**
+     * Fails if the server left out objects of a key batch, e.g. because it paged the
+     * reply. Keys deleted meanwhile lower Total-Results too, so they don't count.
+     */
+    static void checkBatchComplete(String label, Response<? extends List<?>> response) throws Exception {
+        List<?> body = response.body();
+        int returned = body != null ? body.size() : 0;
+        String totalHeader = response.headers().get("Total-Results");
+        if (totalHeader == null) return;
+        int total;
+        try {
+            total = Integer.parseInt(totalHeader);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (returned < total) {
+            throw new Exception("Got only " + returned + " of " + total + " " + label + " in a key batch");
+        }
+    }
 
     private final Context mContext;
     private final AppDatabase mDb;
+    private final SettingsManager mSettingsManager;
+    private final SyncMetadataManager mSyncMetadata;
     private ZoteroApi mZoteroApi;
-    private SyncTask mCurrentSyncTask;
+    private volatile SyncTask mCurrentSyncTask;
+    // Sync requests that arrived while a sync was running, folded into one follow-up run.
+    private boolean mSyncPending;
+    private boolean mPendingUserInitiated;
+    private boolean mPendingReconcile;
+    private String mPendingApiKey;
 
     private final MutableLiveData<Boolean> mIsSyncing = new MutableLiveData<>(false);
     private final MutableLiveData<SyncProgress> mSyncProgress = new MutableLiveData<>();
 
+    private interface PageFetcher<T> {
+        Response<List<T>> fetch(int start) throws Exception;
+    }
+
+    private interface BatchFetcher<T> {
+        Response<List<T>> fetch(String commaSeparatedKeys) throws Exception;
+    }
+
+    private interface PageWriter<T> {
+        void write(List<T> page) throws Exception;
+    }
+
+    private static class FetchedPage<T> {
+        final int start;
+        final List<T> items;
+        final int version;
+
+        FetchedPage(int start, List<T> items, int version) {
+            this.start = start;
+            this.items = items;
+            this.version = version;
+        }
+    }
+
     // Helper class to return multiple values from getTotalCount
     private static class CountResult {
         final int count;
@@ -44,6 +107,8 @@ public class SyncManager {
     public SyncManager(Application application, AppDatabase db) {
         mContext = application.getApplicationContext();
         mDb = db;
+        mSettingsManager = SettingsManager.getInstance(mContext);
+        mSyncMetadata = new SyncMetadataManager(db);
     }
 
     public void updateApi(ZoteroApi api) {
@@ -58,145 +123,552 @@ public class SyncManager {
         return mSyncProgress;
     }
 
-    public void startSync(String apiKey) {
+    /**
+     * Asks for a sync. Automatic requests are skipped if the last successful sync is
+     * more recent than {@link SettingsManager#getMinAutoSyncIntervalMinutes()}. A
+     * request made while a sync is running is remembered and runs once that sync
+     * finishes, however many requests came in meanwhile.
+     */
+    public void requestSync(String apiKey, boolean userInitiated) {
+        request(apiKey, userInitiated, false);
+    }
+
+    /**
+     * Repairs the local database without wiping it: compares every stored key and
+     * version with the server's, fetches what differs and deletes what the server
+     * no longer has.
+     */
+    public void requestReconcile(String apiKey) {
+        request(apiKey, true, true);
+    }
+
+    private synchronized void request(String apiKey, boolean userInitiated, boolean reconcile) {
         if (mZoteroApi == null) {
             Log.e(TAG, "Sync started before ZoteroApi was initialized.");
             return;
         }
-        if (mIsSyncing.getValue() != null && mIsSyncing.getValue()) {
+        if (mCurrentSyncTask != null) {
+            mSyncPending = true;
+            mPendingUserInitiated |= userInitiated;
+            mPendingReconcile |= reconcile;
+            mPendingApiKey = apiKey;
+            return;
+        }
+        if (!userInitiated && !isAutoSyncDue()) {
+            Log.d(TAG, "Skipping automatic sync, the library was synced recently.");
             return;
         }
-        mCurrentSyncTask = new SyncTask(apiKey);
-        mCurrentSyncTask.execute();
+        startSyncTask(apiKey, reconcile);
     }
 
-    public void cancelSync() {
-        if (mCurrentSyncTask != null) {
-            mCurrentSyncTask.cancel(true);
+    private void startSyncTask(String apiKey, boolean reconcile) {
+        mIsSyncing.postValue(true);
+        mCurrentSyncTask = new SyncTask(apiKey, reconcile);
+        AppExecutors.getInstance().networkIO().execute(mCurrentSyncTask);
+    }
+
+    private boolean isAutoSyncDue() {
+        long interval = mSettingsManager.getMinAutoSyncIntervalMinutes() * 60_000L;
+        long elapsed = System.currentTimeMillis() - getPrefs().getLong(KEY_LAST_SYNC_TIME, 0);
+        // A clock set backwards counts as due.
+        return elapsed >= interval || elapsed < 0;
+    }
+
+    /** Ends the current run and starts the coalesced follow-up, if one was requested. */
+    private synchronized void onSyncTaskFinished() {
+        mCurrentSyncTask = null;
+        boolean runAgain = mSyncPending && (mPendingUserInitiated || isAutoSyncDue());
+        String apiKey = mPendingApiKey;
+        boolean reconcile = mPendingReconcile;
+        mSyncPending = false;
+        mPendingUserInitiated = false;
+        mPendingReconcile = false;
+        mPendingApiKey = null;
+        if (runAgain) {
+            startSyncTask(apiKey, reconcile);
+        } else {
+            mIsSyncing.postValue(false);
+        }
+    }
+
+    public synchronized void cancelSync() {
+        // Requests made after this point still get their run.
+        mSyncPending = false;
+        mPendingUserInitiated = false;
+        mPendingReconcile = false;
+        mPendingApiKey = null;
+        SyncTask task = mCurrentSyncTask;
+        if (task != null) {
+            task.cancel();
         }
     }
 
     public void clearSyncMetadata() {
         getPrefs().edit().clear().apply();
+        AppExecutors.getInstance().diskWrite().execute(mSyncMetadata::clearAll);
     }
 
     private SharedPreferences getPrefs() {
         return mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
     }
 
-    private class SyncTask extends AsyncTask<Void, SyncProgress, String> {
+    /**
+     * Buffers sync results so that several pages are committed in one transaction.
+     * Only touched from the sync thread.
+     */
+    private class PendingWrites {
+        final List<Item> itemsToUpsert = new ArrayList<>();
+        final List<String> itemKeysToDelete = new ArrayList<>();
+        final List<Collection> collectionsToUpsert = new ArrayList<>();
+        final List<String> collectionKeysToDelete = new ArrayList<>();
+        // Committed with the pages they cover, so a resumed sync never skips a page.
+        final Map<String, SyncCheckpoint> checkpoints = new HashMap<>();
+        private final int mCommitEveryPages;
+        private int mBufferedPages;
+
+        PendingWrites(int commitEveryPages) {
+            mCommitEveryPages = commitEveryPages;
+        }
+
+        void pageBuffered() {
+            mBufferedPages++;
+            if (mCommitEveryPages > 0 && mBufferedPages >= mCommitEveryPages) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (itemsToUpsert.isEmpty() && itemKeysToDelete.isEmpty()
+                    && collectionsToUpsert.isEmpty() && collectionKeysToDelete.isEmpty()
+                    && checkpoints.isEmpty()) {
+                return;
+            }
+            mDb.runInTransaction(() -> {
+                mDb.collectionDao().applyPage(collectionsToUpsert, collectionKeysToDelete);
+                mDb.itemDao().applyPage(itemsToUpsert, itemKeysToDelete);
+                for (SyncCheckpoint checkpoint : checkpoints.values()) {
+                    mSyncMetadata.saveCheckpoint(checkpoint);
+                }
+            });
+            Log.d(TAG, "Committed " + mBufferedPages + " page(s) in one transaction.");
+            itemsToUpsert.clear();
+            itemKeysToDelete.clear();
+            collectionsToUpsert.clear();
+            collectionKeysToDelete.clear();
+            checkpoints.clear();
+            mBufferedPages = 0;
+        }
+    }
+
+    /**
+     * One sync run, executed on {@link AppExecutors#networkIO()}.
+     */
+    private class SyncTask implements Runnable {
         private final String mApiKey;
+        private final boolean mReconcile;
+        private final PendingWrites mPendingWrites;
+        private volatile boolean mCancelled;
+        private Thread mThread;
         private int libraryVersion;
 
-        SyncTask(String apiKey) {
+        SyncTask(String apiKey, boolean reconcile) {
             mApiKey = apiKey;
+            mReconcile = reconcile;
+            mPendingWrites = new PendingWrites(mSettingsManager.getSyncCommitEveryPages());
         }
 
-        @Override
-        protected void onPreExecute() {
-            mIsSyncing.postValue(true);
-            libraryVersion = getPrefs().getInt(KEY_LIBRARY_VERSION, 0);
-            Log.d(TAG, "Starting sync from library version: " + libraryVersion);
+        synchronized void cancel() {
+            mCancelled = true;
+            // Wakes up a blocking network call or a wait for the next page.
+            if (mThread != null) mThread.interrupt();
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private void publishProgress(SyncProgress progress) {
+            mSyncProgress.postValue(progress);
         }
 
         @Override
-        protected String doInBackground(Void... voids) {
+        public void run() {
+            synchronized (this) {
+                mThread = Thread.currentThread();
+            }
             try {
-                int itemsLatestVersion = syncItems(libraryVersion);
-                int collectionsLatestVersion = syncCollections(libraryVersion);
-                int deletedLatestVersion = 0;
+                libraryVersion = getPrefs().getInt(KEY_LIBRARY_VERSION, 0);
+                Log.d(TAG, "Starting sync from library version: " + libraryVersion);
+
+                String newVersion = doInBackground();
+                if (isCancelled()) {
+                    onCancelled();
+                } else {
+                    onPostExecute(newVersion);
+                }
+            } finally {
+                synchronized (this) {
+                    mThread = null;
+                }
+                // Don't leak a late interrupt into the next task on this pool thread.
+                Thread.interrupted();
+            }
+        }
 
-                if (libraryVersion > 0) {
-                    deletedLatestVersion = syncDeletions(libraryVersion);
+        /**
+         * A first sync pages through full JSON. Later syncs, and reconciling, diff the
+         * server's key-to-version maps against the stored versions and fetch only the
+         * objects that differ.
+         */
+        private String doInBackground() {
+            try {
+                // Attachments migrated without checksums differ from every server version.
+                boolean reconcile = mReconcile
+                        || libraryVersion > 0 && mDb.itemDao().hasAttachmentsWithoutChecksums();
+                if (!reconcile && libraryVersion > 0 && !libraryChangedSince(libraryVersion)) {
+                    Log.d(TAG, "Library unchanged since version " + libraryVersion);
+                    publishProgress(new SyncProgress("Library is up to date", false, 0, 0));
+                    return String.valueOf(libraryVersion);
                 }
 
+                int itemsLatestVersion;
+                int collectionsLatestVersion;
+                int deletedLatestVersion = 0;
+                // After a cancel no further phase starts; what was fetched is still flushed below.
+                if (reconcile) {
+                    itemsLatestVersion = syncItemsByVersion(0);
+                    collectionsLatestVersion = isCancelled() ? 0 : syncCollectionsByVersion(0);
+                } else if (libraryVersion == 0) {
+                    itemsLatestVersion = syncItems();
+                    collectionsLatestVersion = isCancelled() ? 0 : syncCollections();
+                } else {
+                    itemsLatestVersion = syncItemsByVersion(libraryVersion);
+                    collectionsLatestVersion = isCancelled() ? 0 : syncCollectionsByVersion(libraryVersion);
+                    if (!isCancelled()) deletedLatestVersion = syncDeletions(libraryVersion);
+                }
+                // On cancel, keep what was fetched; its checkpoint goes with it.
+                mPendingWrites.flush();
+                if (isCancelled()) return null;
+
                 return String.valueOf(Math.max(Math.max(itemsLatestVersion, collectionsLatestVersion), deletedLatestVersion));
 
             } catch (Exception e) {
+                // A cancel usually surfaces here, as an interrupted wait or call; keep what was fetched either way.
+                flushAfterFailure();
+                if (isCancelled()) return null;
                 Log.e(TAG, "Sync failed", e);
                 publishProgress(new SyncProgress("Sync failed: " + e.getMessage(), false, 0, 0));
                 return null;
             }
         }
 
-        private int syncItems(int sinceVersion) throws Exception {
-            CountResult countResult = getTotalCount(true, sinceVersion);
+        private void flushAfterFailure() {
+            try {
+                mPendingWrites.flush();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not commit the pages fetched before the failure", e);
+            }
+        }
+
+        /** One conditional request instead of the count, page and /deleted requests of a full run. */
+        private boolean libraryChangedSince(int version) throws Exception {
+            Response<Void> response = mZoteroApi.checkLibraryVersion(3, mApiKey, version, version, 1).execute();
+            if (response.code() == 304) return false;
+            if (!response.isSuccessful()) {
+                throw new Exception("Failed to check library version: " + response.code() + " " + response.message());
+            }
+            return true;
+        }
+
+        /**
+         * Pages through every item. An earlier run that was interrupted at the same
+         * library version is continued from its checkpoint.
+         */
+        private int syncItems() throws Exception {
+            CountResult countResult = getTotalCount(true, 0);
             int totalItems = countResult.count;
-            int lastVersion = countResult.version;
-            int start = 0;
-
-            publishProgress(new SyncProgress("Syncing items...", totalItems > 0, 0, totalItems));
-            if(totalItems == 0) return lastVersion;
-
-            while (true) {
-                if (isCancelled()) return sinceVersion;
-                Log.d(TAG, "Executing getItems: since=" + sinceVersion + ", start=" + start);
-                Response<List<Item>> response = mZoteroApi.getItems(3, mApiKey, sinceVersion, start, PAGE_SIZE, 0, "-annotation").execute();
-                if (!response.isSuccessful()) {
-                    throw new Exception("Failed to get items: " + response.code() + " " + response.message());
+            SyncCheckpoint checkpoint = mSyncMetadata.getCheckpoint(SyncMetadataManager.TYPE_ITEMS, countResult.version);
+            if (checkpoint.complete) return countResult.version;
+
+            publishProgress(new SyncProgress("Syncing items...", totalItems > 0, checkpoint.nextStart, totalItems));
+            if(totalItems == 0) return countResult.version;
+
+            return this.<Item>fetchPages(totalItems, countResult.version, "items", checkpoint,
+                    start -> {
+                        Log.d(TAG, "Executing getItems: start=" + start);
+                        return mZoteroApi.getItems(3, mApiKey, 0, start, PAGE_SIZE, 0, "-annotation").execute();
+                    },
+                    this::bufferItems);
+        }
+
+        private void bufferItems(List<Item> items) {
+            fillPinyin(items);
+            for(Item item : items){
+                if(item.deleted){
+                    mPendingWrites.itemKeysToDelete.add(item.key);
+                } else {
+                    mPendingWrites.itemsToUpsert.add(item);
                 }
+            }
+            mPendingWrites.pageBuffered();
+        }
 
-                lastVersion = Math.max(lastVersion, getVersionFromHeader(response, lastVersion));
-                List<Item> items = response.body();
-                if (items == null || items.isEmpty()) break;
-
-                List<Item> itemsToUpsert = new ArrayList<>();
-                List<String> itemKeysToDelete = new ArrayList<>();
-                for(Item item : items){
-                    if(item.deleted){
-                        itemKeysToDelete.add(item.key);
-                    } else {
-                        itemsToUpsert.add(item);
-                    }
+        /**
+         * Fetches the items whose version differs from the stored one, 50 keys per
+         * request. With {@code sinceVersion} 0 the map covers the whole library, so
+         * stored items missing from it are deleted as well.
+         */
+        private int syncItemsByVersion(int sinceVersion) throws Exception {
+            publishProgress(new SyncProgress("Checking item versions...", false, 0, 0));
+            Response<Map<String, Integer>> response = mZoteroApi.getItemVersions(3, mApiKey, sinceVersion, 0, "-annotation").execute();
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new Exception("Failed to get item versions: " + response.code() + " " + response.message());
+            }
+            Map<String, Integer> remote = response.body();
+
+            Map<String, Integer> local = new HashMap<>();
+            if (sinceVersion == 0) {
+                for (KeyVersion row : mDb.itemDao().getAllVersions()) local.put(row.key, row.version);
+            } else {
+                for (List<String> chunk : Utils.partition(new ArrayList<>(remote.keySet()), AppDatabase.MAX_BIND_ARGS)) {
+                    for (ItemLocalState state : mDb.itemDao().getLocalStates(chunk)) local.put(state.key, state.version);
                 }
+            }
+            List<String> changed = changedKeys(remote, local);
+            if (sinceVersion == 0) {
+                List<String> stale = staleKeys(remote, local);
+                Log.d(TAG, "Reconcile: " + stale.size() + " stored items are gone from the server.");
+                mPendingWrites.itemKeysToDelete.addAll(stale);
+            }
+            Log.d(TAG, changed.size() + " of " + remote.size() + " listed items need fetching.");
+
+            this.<Item>fetchBatches(changed, "items",
+                    keys -> mZoteroApi.getItemsByKey(3, mApiKey, keys, 0, KEY_BATCH_SIZE).execute(),
+                    this::bufferItems);
+            return getVersionFromHeader(response, sinceVersion);
+        }
 
-                if (!itemsToUpsert.isEmpty()) mDb.itemDao().insertAll(itemsToUpsert);
-                if (!itemKeysToDelete.isEmpty()) mDb.itemDao().deleteByKeys(itemKeysToDelete);
-                
-                start += items.size();
-                publishProgress(new SyncProgress("Synced " + start + " / " + totalItems + " items...", true, start, totalItems));
+        private int syncCollectionsByVersion(int sinceVersion) throws Exception {
+            publishProgress(new SyncProgress("Checking collection versions...", false, 0, 0));
+            Response<Map<String, Integer>> response = mZoteroApi.getCollectionVersions(3, mApiKey, sinceVersion, 1).execute();
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new Exception("Failed to get collection versions: " + response.code() + " " + response.message());
+            }
+            Map<String, Integer> remote = response.body();
+
+            // Collections are few, so the whole table is read either way.
+            Map<String, Integer> local = new HashMap<>();
+            for (KeyVersion row : mDb.collectionDao().getAllVersions()) local.put(row.key, row.version);
+            List<String> changed = changedKeys(remote, local);
+            if (sinceVersion == 0) {
+                mPendingWrites.collectionKeysToDelete.addAll(staleKeys(remote, local));
+            }
+
+            this.<Collection>fetchBatches(changed, "collections",
+                    keys -> mZoteroApi.getCollectionsByKey(3, mApiKey, keys, 1, KEY_BATCH_SIZE).execute(),
+                    this::bufferCollections);
+            return getVersionFromHeader(response, sinceVersion);
+        }
+
+        private List<String> changedKeys(Map<String, Integer> remote, Map<String, Integer> local) {
+            List<String> changed = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : remote.entrySet()) {
+                Integer localVersion = local.get(entry.getKey());
+                if (localVersion == null || !localVersion.equals(entry.getValue())) changed.add(entry.getKey());
+            }
+            return changed;
+        }
+
+        private List<String> staleKeys(Map<String, Integer> remote, Map<String, Integer> local) {
+            List<String> stale = new ArrayList<>();
+            for (String key : local.keySet()) {
+                if (!remote.containsKey(key)) stale.add(key);
+            }
+            return stale;
+        }
+
+        /**
+         * Sets the pinyin columns of a fetched page, reusing the stored values of
+         * items whose version has not changed (e.g. when re-syncing from scratch).
+         */
+        private void fillPinyin(List<Item> items) {
+            List<String> keys = new ArrayList<>(items.size());
+            for (Item item : items) {
+                if (!item.deleted) keys.add(item.key);
+            }
+            Map<String, ItemLocalState> localStates = new HashMap<>();
+            for (List<String> chunk : Utils.partition(keys, AppDatabase.MAX_BIND_ARGS)) {
+                for (ItemLocalState state : mDb.itemDao().getLocalStates(chunk)) {
+                    localStates.put(state.key, state);
+                }
+            }
+            for (Item item : items) {
+                if (item.deleted) continue;
+                ItemLocalState local = localStates.get(item.key);
+                if (local != null && local.version == item.version && local.titlePinyin != null) {
+                    item.titlePinyin = local.titlePinyin;
+                    item.titlePinyinFull = local.titlePinyinFull;
+                } else {
+                    PinyinUtils.apply(item);
+                }
             }
-            return lastVersion;
         }
 
-        private int syncCollections(int sinceVersion) throws Exception {
-            CountResult countResult = getTotalCount(false, sinceVersion);
+        private int syncCollections() throws Exception {
+            CountResult countResult = getTotalCount(false, 0);
             int totalCollections = countResult.count;
-            int lastVersion = countResult.version;
-            int start = 0;
-
-            publishProgress(new SyncProgress("Syncing collections...", totalCollections > 0, 0, totalCollections));
-            if(totalCollections == 0) return lastVersion;
-
-            while (true) {
-                if (isCancelled()) return sinceVersion;
-                Log.d(TAG, "Executing getCollections: since=" + sinceVersion + ", start=" + start);
-                Response<List<Collection>> response = mZoteroApi.getCollections(3, mApiKey, sinceVersion, start, PAGE_SIZE, 1).execute();
-                if (!response.isSuccessful()) {
-                    throw new Exception("Failed to get collections: " + response.code() + " " + response.message());
+            SyncCheckpoint checkpoint = mSyncMetadata.getCheckpoint(SyncMetadataManager.TYPE_COLLECTIONS, countResult.version);
+            if (checkpoint.complete) return countResult.version;
+
+            publishProgress(new SyncProgress("Syncing collections...", totalCollections > 0, checkpoint.nextStart, totalCollections));
+            if(totalCollections == 0) return countResult.version;
+
+            return this.<Collection>fetchPages(totalCollections, countResult.version, "collections", checkpoint,
+                    start -> {
+                        Log.d(TAG, "Executing getCollections: start=" + start);
+                        return mZoteroApi.getCollections(3, mApiKey, 0, start, PAGE_SIZE, 1).execute();
+                    },
+                    this::bufferCollections);
+        }
+
+        private void bufferCollections(List<Collection> collections) {
+            for(Collection collection : collections){
+                if(collection.deleted){
+                    mPendingWrites.collectionKeysToDelete.add(collection.key);
+                } else {
+                    mPendingWrites.collectionsToUpsert.add(collection);
                 }
+            }
+            mPendingWrites.pageBuffered();
+        }
 
-                lastVersion = Math.max(lastVersion, getVersionFromHeader(response, lastVersion));
-                List<Collection> collections = response.body();
-                if (collections == null || collections.isEmpty()) break;
-
-                List<Collection> collectionsToUpsert = new ArrayList<>();
-                List<String> collectionKeysToDelete = new ArrayList<>();
-                for(Collection collection : collections){
-                    if(collection.deleted){
-                        collectionKeysToDelete.add(collection.key);
-                    } else {
-                        collectionsToUpsert.add(collection);
+        /**
+         * Fetches every page of a paged endpoint with up to {@link SettingsManager#getSyncConcurrency()}
+         * requests in flight. Pages are requested and parsed on a pool of fetch threads and handed back
+         * through a bounded completion queue; this (sync) thread is the only one that writes to the DB.
+         * Since Total-Results tells us every offset up front, the next request is issued as soon as a
+         * slot frees up instead of after the previous page has been written. Pages are buffered in
+         * {@link PendingWrites} and committed every {@link SettingsManager#getSyncCommitEveryPages()} pages.
+         * Paging starts at {@code checkpoint.nextStart}, which only moves past a page once every page
+         * before it has been buffered, so pages that arrive out of order are never skipped on resume.
+         */
+        private <T> int fetchPages(int total, int lastVersion, String label, SyncCheckpoint checkpoint,
+                                   PageFetcher<T> fetcher, PageWriter<T> writer) throws Exception {
+            int concurrency = mSettingsManager.getSyncConcurrency();
+            ExecutorService fetchPool = Executors.newFixedThreadPool(concurrency);
+            // At most `concurrency` pages are fetched-but-not-written at any time, so the queue never overflows.
+            CompletionService<FetchedPage<T>> completion =
+                    new ExecutorCompletionService<>(fetchPool, new ArrayBlockingQueue<>(concurrency));
+
+            int end = total;
+            int nextStart = checkpoint.nextStart;
+            int inFlight = 0;
+            int written = checkpoint.nextStart;
+            // Pages buffered ahead of checkpoint.nextStart.
+            Set<Integer> bufferedStarts = new HashSet<>();
+            try {
+                while (true) {
+                    while (inFlight < concurrency && nextStart < end) {
+                        final int start = nextStart;
+                        completion.submit(() -> {
+                            Response<List<T>> response = fetcher.fetch(start);
+                            if (!response.isSuccessful()) {
+                                throw new Exception("Failed to get " + label + ": " + response.code() + " " + response.message());
+                            }
+                            return new FetchedPage<>(start, response.body(), getVersionFromHeader(response, 0));
+                        });
+                        nextStart += PAGE_SIZE;
+                        inFlight++;
+                    }
+                    if (inFlight == 0) break;
+                    if (isCancelled()) return lastVersion;
+
+                    FetchedPage<T> page;
+                    try {
+                        page = completion.take().get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : e;
                     }
+                    inFlight--;
+
+                    lastVersion = Math.max(lastVersion, page.version);
+                    boolean empty = page.items == null || page.items.isEmpty();
+                    if (!empty) writer.write(page.items);
+                    // Advanced only once the page is buffered, so the next flush commits both together.
+                    bufferedStarts.add(page.start);
+                    while (bufferedStarts.remove(checkpoint.nextStart)) checkpoint.nextStart += PAGE_SIZE;
+                    mPendingWrites.checkpoints.put(checkpoint.objectType, checkpoint);
+                    if (empty) continue;
+                    written += page.items.size();
+
+                    // Total-Results may have grown since the count request; keep paging while the last page is full.
+                    if (page.items.size() >= PAGE_SIZE && page.start + PAGE_SIZE >= end) {
+                        end = page.start + PAGE_SIZE + 1;
+                    }
+
+                    int displayTotal = Math.max(total, written);
+                    publishProgress(new SyncProgress("Synced " + written + " / " + displayTotal + " " + label + "...", true, written, displayTotal));
                 }
+            } finally {
+                fetchPool.shutdownNow();
+            }
+            checkpoint.complete = true;
+            mPendingWrites.checkpoints.put(checkpoint.objectType, checkpoint);
+            return lastVersion;
+        }
 
-                if (!collectionsToUpsert.isEmpty()) mDb.collectionDao().insertAll(collectionsToUpsert);
-                if (!collectionKeysToDelete.isEmpty()) mDb.collectionDao().deleteByKeys(collectionKeysToDelete);
+        /**
+         * Fetches {@code keys} in batches of {@link #KEY_BATCH_SIZE}, with the same
+         * concurrency and single writer as {@link #fetchPages}.
+         */
+        private <T> void fetchBatches(List<String> keys, String label, BatchFetcher<T> fetcher, PageWriter<T> writer) throws Exception {
+            if (keys.isEmpty()) return;
+            List<List<String>> batches = Utils.partition(keys, KEY_BATCH_SIZE);
+            int concurrency = mSettingsManager.getSyncConcurrency();
+            ExecutorService fetchPool = Executors.newFixedThreadPool(concurrency);
+            CompletionService<FetchedPage<T>> completion =
+                    new ExecutorCompletionService<>(fetchPool, new ArrayBlockingQueue<>(concurrency));
+
+            int next = 0;
+            int inFlight = 0;
+            int written = 0;
+            try {
+                while (true) {
+                    while (inFlight < concurrency && next < batches.size()) {
+                        final int index = next;
+                        final String joined = TextUtils.join(",", batches.get(index));
+                        completion.submit(() -> {
+                            Response<List<T>> response = fetcher.fetch(joined);
+                            if (!response.isSuccessful()) {
+                                throw new Exception("Failed to get " + label + ": " + response.code() + " " + response.message());
+                            }
+                            checkBatchComplete(label, response);
+                            return new FetchedPage<>(index, response.body(), getVersionFromHeader(response, 0));
+                        });
+                        next++;
+                        inFlight++;
+                    }
+                    if (inFlight == 0) break;
+                    if (isCancelled()) return;
+
+                    FetchedPage<T> page;
+                    try {
+                        page = completion.take().get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : e;
+                    }
+                    inFlight--;
+                    if (page.items == null || page.items.isEmpty()) continue;
 
-                start += collections.size();
-                publishProgress(new SyncProgress("Synced " + start + " / " + totalCollections + " collections...", true, start, totalCollections));
+                    writer.write(page.items);
+                    written += page.items.size();
+                    publishProgress(new SyncProgress("Synced " + written + " / " + keys.size() + " " + label + "...", true, written, keys.size()));
+                }
+            } finally {
+                fetchPool.shutdownNow();
             }
-            return lastVersion;
         }
 
         private int syncDeletions(int sinceVersion) throws Exception {
@@ -222,12 +694,12 @@ public class SyncManager {
 
             if (deleted.collections != null && !deleted.collections.isEmpty()) {
                 Log.d(TAG, "Preparing to delete " + deleted.collections.size() + " collections from local DB.");
-                mDb.collectionDao().deleteByKeys(deleted.collections);
+                mPendingWrites.collectionKeysToDelete.addAll(deleted.collections);
             }
 
             if (deleted.items != null && !deleted.items.isEmpty()) {
                 Log.d(TAG, "Preparing to delete " + deleted.items.size() + " items from local DB.");
-                mDb.itemDao().deleteByKeys(deleted.items);
+                mPendingWrites.itemKeysToDelete.addAll(deleted.items);
             }
             return lastVersion;
         }
@@ -264,29 +736,24 @@ public class SyncManager {
             throw new Exception("Failed to get count: " + response.code() + " " + response.message());
         }
 
-        @Override
-        protected void onProgressUpdate(SyncProgress... values) {
-            if (values.length > 0) mSyncProgress.postValue(values[0]);
-        }
-
-        @Override
-        protected void onPostExecute(String newVersion) {
+        private void onPostExecute(String newVersion) {
             if (newVersion != null) {
+                SharedPreferences.Editor editor = getPrefs().edit().putLong(KEY_LAST_SYNC_TIME, System.currentTimeMillis());
                 int version = Integer.parseInt(newVersion);
                  if (version > libraryVersion) {
-                    getPrefs().edit().putInt(KEY_LIBRARY_VERSION, version).apply();
+                    editor.putInt(KEY_LIBRARY_VERSION, version);
                     Log.d(TAG, "Sync finished. New library version: " + newVersion);
                  }
+                editor.apply();
+                // Later syncs are incremental; the first-sync checkpoints are done with.
+                if (libraryVersion == 0) mSyncMetadata.clearAll();
             }
-            mIsSyncing.postValue(false);
-            mCurrentSyncTask = null;
+            onSyncTaskFinished();
         }
 
-        @Override
-        protected void onCancelled() {
-            mIsSyncing.postValue(false);
-            mCurrentSyncTask = null;
+        private void onCancelled() {
             mSyncProgress.postValue(new SyncProgress("Sync cancelled", false, 0, 0));
+            onSyncTaskFinished();
         }
     }
 
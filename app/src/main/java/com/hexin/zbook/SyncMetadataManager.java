@@ -1,37 +1,40 @@
 package com.hexin.zbook;
 
-import android.content.Context;
-import android.content.SharedPreferences;
-
+/**
+ * Per-object-type sync state. It lives in the database rather than in preferences
+ * so that a checkpoint can be committed in the same transaction as the pages it
+ * covers.
+ */
 public class SyncMetadataManager {
 
-    private static final String PREFS_NAME = "SyncMetadataPrefs";
-    private static final String KEY_LAST_ITEM_VERSION = "lastItemVersion";
-    private static final String KEY_LAST_COLLECTION_VERSION = "lastCollectionVersion";
-
-    private final SharedPreferences mPrefs;
+    public static final String TYPE_ITEMS = "items";
+    public static final String TYPE_COLLECTIONS = "collections";
 
-    public SyncMetadataManager(Context context) {
-        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-    }
+    private final SyncCheckpointDao mDao;
 
-    public int getLastItemSyncVersion() {
-        return mPrefs.getInt(KEY_LAST_ITEM_VERSION, 0);
+    public SyncMetadataManager(AppDatabase db) {
+        mDao = db.syncCheckpointDao();
     }
 
-    public void setLastItemSyncVersion(int version) {
-        mPrefs.edit().putInt(KEY_LAST_ITEM_VERSION, version).apply();
+    /**
+     * Returns where the first sync of {@code objectType} can continue for a library
+     * at {@code libraryVersion}: the stored checkpoint, or a fresh one if there is
+     * none or the library has changed since it was written.
+     */
+    public SyncCheckpoint getCheckpoint(String objectType, int libraryVersion) {
+        SyncCheckpoint checkpoint = mDao.get(objectType);
+        if (checkpoint == null || checkpoint.targetVersion != libraryVersion) {
+            return new SyncCheckpoint(objectType, libraryVersion);
+        }
+        return checkpoint;
     }
 
-    public int getLastCollectionSyncVersion() {
-        return mPrefs.getInt(KEY_LAST_COLLECTION_VERSION, 0);
+    /** Call inside the transaction that commits the pages the checkpoint covers. */
+    public void saveCheckpoint(SyncCheckpoint checkpoint) {
+        mDao.save(checkpoint);
     }
 
-    public void setLastCollectionSyncVersion(int version) {
-        mPrefs.edit().putInt(KEY_LAST_COLLECTION_VERSION, version).apply();
-    }
-    
     public void clearAll() {
-        mPrefs.edit().clear().apply();
+        mDao.clearTable();
     }
 }
@@ -1,7 +1,6 @@
 package com.hexin.zbook;
 
 import android.app.Application;
-import android.os.AsyncTask;
 
 import androidx.lifecycle.LiveData;
 
@@ -12,7 +11,6 @@ public class SyncRepository {
     private final CollectionDao mCollectionDao;
     private final ItemDao mItemDao;
     private final LiveData<List<Collection>> mAllCollections;
-    private final LiveData<List<Item>> mAllItems;
     private final LiveData<List<CollectionCount>> mCollectionCounts;
     private final LiveData<List<Item>> mAttachments;
 
@@ -21,7 +19,6 @@ public class SyncRepository {
         mCollectionDao = db.collectionDao();
         mItemDao = db.itemDao();
         mAllCollections = mCollectionDao.getAll();
-        mAllItems = mItemDao.getAll();
         mCollectionCounts = mItemDao.getCollectionCounts();
         mAttachments = mItemDao.getAttachments();
     }
@@ -30,10 +27,6 @@ public class SyncRepository {
         return mAllCollections;
     }
 
-    public LiveData<List<Item>> getAllItems() {
-        return mAllItems;
-    }
-
     public LiveData<List<CollectionCount>> getCollectionCounts() {
         return mCollectionCounts;
     }
@@ -56,37 +49,15 @@ public class SyncRepository {
     }
 
     public void clearCollectionsTable() {
-        new ClearCollectionsAsyncTask(mCollectionDao).execute();
+        AppExecutors.getInstance().diskWrite().execute(mCollectionDao::clearTable);
     }
 
     public void clearAllTables() {
-        new ClearDatabaseAsyncTask(mCollectionDao, mItemDao).execute();
-    }
-
-    private static class ClearCollectionsAsyncTask extends AsyncTask<Void, Void, Void> {
-        private final CollectionDao mDao;
-        ClearCollectionsAsyncTask(CollectionDao dao) { mDao = dao; }
-        @Override
-        protected Void doInBackground(Void... voids) {
-            mDao.clearTable();
-            return null;
-        }
-    }
-
-    private static class ClearDatabaseAsyncTask extends AsyncTask<Void, Void, Void> {
-        private final CollectionDao mCollectionDao;
-        private final ItemDao mItemDao;
-
-        ClearDatabaseAsyncTask(CollectionDao collectionDao, ItemDao itemDao) {
-            mCollectionDao = collectionDao;
-            mItemDao = itemDao;
-        }
-
-        @Override
-        protected Void doInBackground(Void... voids) {
+        AppExecutors.getInstance().diskWrite().execute(() -> {
+            mItemDao.clearItemCollections();
+            mItemDao.clearFts();
             mItemDao.clearTable();
             mCollectionDao.clearTable();
-            return null;
-        }
+        });
     }
 }
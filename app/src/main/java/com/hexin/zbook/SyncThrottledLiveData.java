@@ -0,0 +1,76 @@
+package com.hexin.zbook;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
+
+/**
+ * Forwards a Room LiveData, but while a sync is running coalesces its updates so
+ * observers see at most one value per interval, plus one final value when the
+ * sync finishes. Outside of a sync every update is forwarded immediately.
+ */
+public class SyncThrottledLiveData<T> extends MediatorLiveData<T> {
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDispatchPending = this::dispatchPending;
+    private final long mIntervalMs;
+
+    private boolean mSyncing;
+    private boolean mHasPending;
+    private T mPending;
+    private long mLastDispatchMs;
+
+    public SyncThrottledLiveData(LiveData<T> source, LiveData<Boolean> isSyncing, long intervalMs) {
+        mIntervalMs = intervalMs;
+
+        addSource(isSyncing, syncing -> {
+            mSyncing = syncing != null && syncing;
+            if (!mSyncing) {
+                // Sync finished: deliver whatever was held back straight away.
+                dispatchPending();
+            }
+        });
+
+        addSource(source, value -> {
+            if (!mSyncing) {
+                mHandler.removeCallbacks(mDispatchPending);
+                mHasPending = false;
+                mPending = null;
+                dispatch(value);
+                return;
+            }
+            mPending = value;
+            if (!mHasPending) {
+                mHasPending = true;
+                long delay = Math.max(0, mLastDispatchMs + mIntervalMs - SystemClock.uptimeMillis());
+                mHandler.postDelayed(mDispatchPending, delay);
+            }
+        });
+    }
+
+    private void dispatchPending() {
+        mHandler.removeCallbacks(mDispatchPending);
+        if (!mHasPending) return;
+        T value = mPending;
+        mHasPending = false;
+        mPending = null;
+        dispatch(value);
+    }
+
+    private void dispatch(T value) {
+        mLastDispatchMs = SystemClock.uptimeMillis();
+        setValue(value);
+    }
+
+    @Override
+    protected void onInactive() {
+        super.onInactive();
+        // The sources are detached while inactive and re-emit their latest value when we become active again.
+        mHandler.removeCallbacks(mDispatchPending);
+        mHasPending = false;
+        mPending = null;
+    }
+}
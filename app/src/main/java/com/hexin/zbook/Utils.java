@@ -2,12 +2,25 @@ package com.hexin.zbook;
 
 import android.text.format.DateUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Utils {
 
+    // 使用正则表达式查找一个4位数字或一个2位数字
+    // \b 确保是单词边界，避免从 "12345" 中匹配 "1234"
+    // 编译一次即可，extractYear 在同步时会对每个条目调用
+    private static final Pattern YEAR_PATTERN = Pattern.compile("\\b(\\d{4}|\\d{2})\\b");
+
     /**
      * 从一个可能不规范的日期字符串中健壮地提取年份。
      * - "2014" -> 2014
@@ -24,10 +37,7 @@ public class Utils {
             return null;
         }
 
-        // 使用正则表达式查找一个4位数字或一个2位数字
-        // \b 确保是单词边界，避免从 "12345" 中匹配 "1234"
-        Pattern pattern = Pattern.compile("\\b(\\d{4}|\\d{2})\\b");
-        Matcher matcher = pattern.matcher(dateStr);
+        Matcher matcher = YEAR_PATTERN.matcher(dateStr);
 
         if (matcher.find()) {
             String yearStr = matcher.group(1);
@@ -61,4 +71,52 @@ public class Utils {
         return DateUtils.getRelativeTimeSpanString(timestamp, System.currentTimeMillis(),
                 DateUtils.MINUTE_IN_MILLIS).toString();
     }
+
+    /**
+     * 把列表切成不超过 size 的小段。SQLite 单条语句最多绑定 999 个参数，
+     * 所以 "IN (:keys)" 这类查询需要分批执行。
+     */
+    public static <T> List<List<T>> partition(List<T> list, int size) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += size) {
+            chunks.add(list.subList(i, Math.min(list.size(), i + size)));
+        }
+        return chunks;
+    }
+
+    public static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** 把文件的前 length 个字节（length < 0 时为整个文件）送入 digest，边读边算，不整体载入内存。 */
+    public static void updateDigest(MessageDigest digest, File file, long length) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length < 0 ? Long.MAX_VALUE : length;
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    public static String md5Hex(File file) throws IOException {
+        MessageDigest md5 = newMd5();
+        updateDigest(md5, file, -1);
+        return toHex(md5.digest());
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
 }
@@ -0,0 +1,39 @@
+package com.hexin.zbook;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+/**
+ * One {@code <key>.zip} in the WebDAV storage folder, as listed by the last
+ * PROPFIND of {@link WebDavIndex}.
+ */
+@Entity(tableName = "webdav_index")
+public class WebDavFile {
+
+    @PrimaryKey
+    @NonNull
+    @ColumnInfo(name = "itemKey")
+    public String itemKey;
+
+    /** Size of the zip in bytes, or -1 if the server didn't report it. */
+    @ColumnInfo(name = "size")
+    public long size;
+
+    /** Last-modified time of the zip in epoch milliseconds, or 0 if unknown. */
+    @ColumnInfo(name = "modified")
+    public long modified;
+
+    public WebDavFile() {
+        itemKey = "";
+    }
+
+    @Ignore
+    public WebDavFile(@NonNull String itemKey, long size, long modified) {
+        this.itemKey = itemKey;
+        this.size = size;
+        this.modified = modified;
+    }
+}
@@ -0,0 +1,194 @@
+package com.hexin.zbook;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import okhttp3.Credentials;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Sizes and modification times of the attachment zips in the WebDAV storage folder.
+ * One {@code PROPFIND Depth: 1} lists the whole folder, replacing a HEAD request per
+ * attachment; the reply is parsed as it streams in and stored in webdav_index.
+ */
+public class WebDavIndex {
+
+    private static final String TAG = "WebDavIndex";
+    // A listing younger than this is reused rather than fetched again.
+    private static final long MAX_AGE_MS = 10 * 60 * 1000;
+    private static final MediaType XML = MediaType.get("application/xml; charset=utf-8");
+    private static final String PROPFIND_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<d:propfind xmlns:d=\"DAV:\"><d:prop><d:getcontentlength/><d:getlastmodified/></d:prop></d:propfind>";
+
+    private final OkHttpClient mClient;
+    private final SettingsManager mSettingsManager;
+    private final WebDavIndexDao mIndexDao;
+    private final ItemDao mItemDao;
+    // The folder listed in webdav_index by this process, and when.
+    private volatile String mListedUrl;
+    private volatile long mListedAt;
+
+    public WebDavIndex(OkHttpClient client, SettingsManager settingsManager, WebDavIndexDao indexDao, ItemDao itemDao) {
+        mClient = client;
+        mSettingsManager = settingsManager;
+        mIndexDao = indexDao;
+        mItemDao = itemDao;
+    }
+
+    /**
+     * Lists the storage folder unless it was listed recently, and copies the sizes to
+     * the attachments. Blocks; call it off the main thread.
+     */
+    public synchronized void refreshIfStale() throws IOException {
+        String url = folderUrl();
+        if (url == null) return;
+        if (url.equals(mListedUrl) && SystemClock.elapsedRealtime() - mListedAt < MAX_AGE_MS) return;
+
+        List<WebDavFile> files = fetch(url);
+        mIndexDao.replaceAll(files);
+        int updated = mItemDao.applyWebDavSizes();
+        mListedUrl = url;
+        mListedAt = SystemClock.elapsedRealtime();
+        Log.d(TAG, "Listed " + files.size() + " zips, updated the size of " + updated + " attachments");
+    }
+
+    /**
+     * Returns the listed zip for {@code key}, or null if this process has no listing
+     * of the configured folder or the zip isn't in it.
+     */
+    public WebDavFile lookup(String key) {
+        String url = folderUrl();
+        if (url == null || !url.equals(mListedUrl)) return null;
+        return mIndexDao.get(key);
+    }
+
+    /** Like {@link #lookup(String)} for many keys at once. */
+    public Map<String, WebDavFile> lookupAll(List<String> keys) {
+        Map<String, WebDavFile> files = new HashMap<>();
+        String url = folderUrl();
+        if (url == null || !url.equals(mListedUrl)) return files;
+        for (List<String> chunk : Utils.partition(keys, AppDatabase.MAX_BIND_ARGS)) {
+            for (WebDavFile file : mIndexDao.getByKeys(chunk)) files.put(file.itemKey, file);
+        }
+        return files;
+    }
+
+    private String folderUrl() {
+        String url = mSettingsManager.getWebDavUrl();
+        if (url == null || url.isEmpty()) return null;
+        return url.endsWith("/") ? url : url + "/";
+    }
+
+    private List<WebDavFile> fetch(String url) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .header("Depth", "1")
+                .method("PROPFIND", RequestBody.create(PROPFIND_BODY, XML));
+        String user = mSettingsManager.getWebDavUsername();
+        if (user != null && !user.isEmpty()) builder.header("Authorization", Credentials.basic(user, mSettingsManager.getWebDavPassword()));
+
+        try (Response response = mClient.newCall(builder.build()).execute()) {
+            // 207 Multi-Status is the normal reply to a PROPFIND.
+            if (!response.isSuccessful()) throw new IOException("PROPFIND failed: " + response.code());
+            ResponseBody body = response.body();
+            if (body == null) throw new IOException("Empty PROPFIND response");
+            return parse(body.byteStream());
+        }
+    }
+
+    /** Reads a multistatus reply, keeping only the {@code <key>.zip} entries. */
+    static List<WebDavFile> parse(InputStream in) throws IOException {
+        List<WebDavFile> files = new ArrayList<>();
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(in, null);
+
+            String href = null;
+            String length = null;
+            String modified = null;
+            StringBuilder text = new StringBuilder();
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event == XmlPullParser.START_TAG) {
+                    if ("response".equals(parser.getName())) {
+                        href = null;
+                        length = null;
+                        modified = null;
+                    }
+                    text.setLength(0);
+                } else if (event == XmlPullParser.TEXT) {
+                    text.append(parser.getText());
+                } else if (event == XmlPullParser.END_TAG) {
+                    // Properties the server doesn't have come back empty, in a 404 propstat.
+                    String value = text.toString().trim();
+                    switch (parser.getName()) {
+                        case "href":
+                            href = value;
+                            break;
+                        case "getcontentlength":
+                            if (!value.isEmpty()) length = value;
+                            break;
+                        case "getlastmodified":
+                            if (!value.isEmpty()) modified = value;
+                            break;
+                        case "response":
+                            WebDavFile file = toFile(href, length, modified);
+                            if (file != null) files.add(file);
+                            break;
+                    }
+                    text.setLength(0);
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Malformed PROPFIND response", e);
+        }
+        return files;
+    }
+
+    private static WebDavFile toFile(String href, String length, String modified) {
+        if (href == null) return null;
+        String name = href.endsWith("/") ? "" : href.substring(href.lastIndexOf('/') + 1);
+        // Zotero also keeps a <key>.prop next to each zip; only the zips are downloaded.
+        if (name.length() <= 4 || !name.toLowerCase(Locale.ROOT).endsWith(".zip")) return null;
+
+        long size = -1;
+        if (length != null) {
+            try {
+                size = Long.parseLong(length);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return new WebDavFile(name.substring(0, name.length() - 4), size, parseHttpDate(modified));
+    }
+
+    private static long parseHttpDate(String value) {
+        if (value == null) return 0;
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.hexin.zbook;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import java.util.List;
+
+@Dao
+public interface WebDavIndexDao {
+
+    @Query("SELECT * FROM webdav_index WHERE itemKey = :itemKey")
+    WebDavFile get(String itemKey);
+
+    @Query("SELECT * FROM webdav_index WHERE itemKey IN (:itemKeys)")
+    List<WebDavFile> getByKeys(List<String> itemKeys);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertAll(List<WebDavFile> files);
+
+    @Query("DELETE FROM webdav_index")
+    void clearTable();
+
+    /** Swaps in a complete listing, so readers never see half of one. */
+    @Transaction
+    default void replaceAll(List<WebDavFile> files) {
+        clearTable();
+        insertAll(files);
+    }
+}
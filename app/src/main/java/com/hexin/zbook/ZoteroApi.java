@@ -1,6 +1,7 @@
 package com.hexin.zbook;
 
 import java.util.List;
+import java.util.Map;
 
 import retrofit2.Call;
 import retrofit2.http.GET;
@@ -52,6 +53,65 @@ public interface ZoteroApi {
             @Query("includeTrashed") int includeTrashed
     );
 
+    /** Key to version of every item changed after {@code since}; a few KB even for large libraries. */
+    @Headers("Cache-Control: no-store")
+    @GET("items?format=versions")
+    Call<Map<String, Integer>> getItemVersions(
+            @Header("Zotero-API-Version") int apiVersion,
+            @Header("Zotero-API-Key") String apiKey,
+            @Query("since") int since,
+            @Query("includeTrashed") int includeTrashed,
+            @Query("itemType") String itemType
+    );
+
+    /**
+     * Up to 50 items by key; {@code itemKeys} is comma-separated. Without a
+     * {@code limit} the server returns only its default page of 25.
+     */
+    @Headers("Cache-Control: no-store")
+    @GET("items")
+    Call<List<Item>> getItemsByKey(
+            @Header("Zotero-API-Version") int apiVersion,
+            @Header("Zotero-API-Key") String apiKey,
+            @Query("itemKey") String itemKeys,
+            @Query("includeTrashed") int includeTrashed,
+            @Query("limit") int limit
+    );
+
+    @Headers("Cache-Control: no-store")
+    @GET("collections?format=versions")
+    Call<Map<String, Integer>> getCollectionVersions(
+            @Header("Zotero-API-Version") int apiVersion,
+            @Header("Zotero-API-Key") String apiKey,
+            @Query("since") int since,
+            @Query("includeTrashed") int includeTrashed
+    );
+
+    /** Up to 50 collections by key; {@code collectionKeys} is comma-separated. */
+    @Headers("Cache-Control: no-store")
+    @GET("collections")
+    Call<List<Collection>> getCollectionsByKey(
+            @Header("Zotero-API-Version") int apiVersion,
+            @Header("Zotero-API-Key") String apiKey,
+            @Query("collectionKey") String collectionKeys,
+            @Query("includeTrashed") int includeTrashed,
+            @Query("limit") int limit
+    );
+
+    /**
+     * Answers 304 Not Modified when nothing in the library changed after
+     * {@code libraryVersion}; otherwise returns at most one changed item.
+     */
+    @Headers("Cache-Control: no-store")
+    @GET("items")
+    Call<Void> checkLibraryVersion(
+            @Header("Zotero-API-Version") int apiVersion,
+            @Header("Zotero-API-Key") String apiKey,
+            @Header("If-Modified-Since-Version") int libraryVersion,
+            @Query("since") int since,
+            @Query("limit") int limit
+    );
+
     @Headers("Cache-Control: no-store")
     @GET("deleted")
     Call<Deleted> getDeleted(
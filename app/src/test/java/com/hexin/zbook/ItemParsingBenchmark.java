@@ -0,0 +1,136 @@
+package com.hexin.zbook;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Replays a recorded /items page through the streaming adapter and through a
+ * Gson tree parse (what the old JsonDeserializer did before copying fields out),
+ * and checks the streaming one allocates less per item.
+ */
+public class ItemParsingBenchmark {
+
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int MEASURED_ROUNDS = 2000;
+
+    private static final Type ITEM_LIST_TYPE = new TypeToken<List<Item>>() {}.getType();
+
+    @Test
+    public void streamingAdapter_parsesRecordedPage() throws IOException {
+        List<Item> items = newGson().fromJson(readPage(), ITEM_LIST_TYPE);
+
+        assertEquals(4, items.size());
+
+        Item book = items.get(0);
+        assertEquals("ABCD2345", book.key);
+        assertEquals(1201, book.version);
+        assertEquals("book", book.itemType);
+        assertEquals("QWER6789,ZXCV2345", book.collectionKey);
+        assertEquals("Donald E. Knuth", book.creators);
+        assertEquals("1997", book.publicationDate);
+        assertNull(book.filename);
+        assertEquals("knuth", book.sortCreator);
+        assertEquals(1997, book.sortYear);
+
+        Item attachment = items.get(1);
+        assertEquals("ABCD2345", attachment.parentItem);
+        assertEquals("knuth-taocp-vol1.pdf", attachment.filename);
+        assertEquals("", attachment.url);
+
+        Item article = items.get(2);
+        assertEquals("小明 王, 华 李, 中国科学院自动化研究所", article.creators);
+
+        Item note = items.get(3);
+        assertNull(note.parentItem);
+        assertNull(note.collectionKey);
+        assertEquals("", note.title);
+    }
+
+    @Test
+    public void streamingAdapter_writesThroughDefaultAdapter() throws IOException {
+        Gson gson = newGson();
+        List<Item> items = gson.fromJson(readPage(), ITEM_LIST_TYPE);
+
+        // The output is Item's own fields, not the Zotero shape the reader expects.
+        JsonArray written = new JsonParser().parse(gson.toJson(items, ITEM_LIST_TYPE)).getAsJsonArray();
+        assertEquals(items.size(), written.size());
+        JsonObject book = written.get(0).getAsJsonObject();
+        assertEquals("ABCD2345", book.get("key").getAsString());
+        assertEquals(1201, book.get("version").getAsInt());
+        assertEquals("Donald E. Knuth", book.get("creators").getAsString());
+        assertEquals("The Art of Computer Programming", book.get("title").getAsString());
+
+        JsonObject attachment = new JsonParser().parse(gson.toJson(items.get(1))).getAsJsonObject();
+        assertEquals("knuth-taocp-vol1.pdf", attachment.get("filename").getAsString());
+    }
+
+    @Test
+    public void allocationsPerItem() throws IOException {
+        String page = readPage();
+        Gson gson = newGson();
+        int itemsPerPage = gson.<List<Item>>fromJson(page, ITEM_LIST_TYPE).size();
+
+        long streaming = measure(() -> gson.fromJson(page, ITEM_LIST_TYPE));
+        long tree = measure(() -> {
+            JsonElement element = new JsonParser().parse(new StringReader(page));
+            element.getAsJsonArray();
+        });
+
+        assumeTrue("Thread allocation counters are not available on this JVM", streaming >= 0 && tree >= 0);
+
+        long totalItems = (long) MEASURED_ROUNDS * itemsPerPage;
+        long streamingPerItem = streaming / totalItems;
+        long treePerItem = tree / totalItems;
+        assertTrue("streaming " + streamingPerItem + " vs tree " + treePerItem + " bytes/item",
+                streamingPerItem < treePerItem);
+    }
+
+    private static long measure(Runnable parse) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) parse.run();
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        long before = sunBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ROUNDS; i++) parse.run();
+        return sunBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private static Gson newGson() {
+        return new GsonBuilder()
+                .registerTypeAdapterFactory(new ItemAdapterFactory())
+                .create();
+    }
+
+    private static String readPage() throws IOException {
+        try (InputStream in = ItemParsingBenchmark.class.getClassLoader().getResourceAsStream("items_page.json")) {
+            assertNotNull("items_page.json is missing from the test resources", in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
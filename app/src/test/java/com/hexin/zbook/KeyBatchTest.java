@@ -0,0 +1,81 @@
+package com.hexin.zbook;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * A key batch must come back whole: the request has to ask for at least
+ * {@link SyncManager#KEY_BATCH_SIZE} objects, and a truncated reply must fail the sync
+ * instead of silently advancing the library version.
+ */
+public class KeyBatchTest {
+
+    private final ZoteroApi mApi = new Retrofit.Builder()
+            .baseUrl("https://api.zotero.org/users/1/")
+            .addConverterFactory(GsonConverterFactory.create())
+            .build()
+            .create(ZoteroApi.class);
+
+    @Test
+    public void itemBatch_requestsAllKeys() {
+        String keys = joinedKeys(SyncManager.KEY_BATCH_SIZE);
+        HttpUrl url = mApi.getItemsByKey(3, "key", keys, 0, SyncManager.KEY_BATCH_SIZE).request().url();
+
+        assertEquals(SyncManager.KEY_BATCH_SIZE, url.queryParameter("itemKey").split(",").length);
+        assertEquals(String.valueOf(SyncManager.KEY_BATCH_SIZE), url.queryParameter("limit"));
+    }
+
+    @Test
+    public void collectionBatch_requestsAllKeys() {
+        String keys = joinedKeys(SyncManager.KEY_BATCH_SIZE);
+        HttpUrl url = mApi.getCollectionsByKey(3, "key", keys, 1, SyncManager.KEY_BATCH_SIZE).request().url();
+
+        assertEquals(String.valueOf(SyncManager.KEY_BATCH_SIZE), url.queryParameter("limit"));
+    }
+
+    @Test
+    public void wholeBatch_isAccepted() throws Exception {
+        SyncManager.checkBatchComplete("items", reply(SyncManager.KEY_BATCH_SIZE, SyncManager.KEY_BATCH_SIZE));
+    }
+
+    @Test
+    public void batchWithDeletedKeys_isAccepted() throws Exception {
+        // Two of the keys were deleted between the version map and the fetch.
+        SyncManager.checkBatchComplete("items", reply(48, 48));
+    }
+
+    @Test
+    public void truncatedBatch_fails() {
+        try {
+            SyncManager.checkBatchComplete("items", reply(25, SyncManager.KEY_BATCH_SIZE));
+            fail("A batch cut to the default page size must not be accepted");
+        } catch (Exception expected) {
+            assertTrue(expected.getMessage().contains("25 of 50"));
+        }
+    }
+
+    private static Response<List<Item>> reply(int returned, int totalResults) {
+        List<Item> items = new ArrayList<>(Collections.nCopies(returned, new Item()));
+        return Response.success(items, Headers.of("Total-Results", String.valueOf(totalResults)));
+    }
+
+    private static String joinedKeys(int count) {
+        StringBuilder keys = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) keys.append(',');
+            keys.append(String.format("K%07d", i));
+        }
+        return keys.toString();
+    }
+}
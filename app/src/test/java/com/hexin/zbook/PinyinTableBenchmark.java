@@ -0,0 +1,114 @@
+package com.hexin.zbook;
+
+import net.sourceforge.pinyin4j.PinyinHelper;
+import net.sourceforge.pinyin4j.format.HanyuPinyinCaseType;
+import net.sourceforge.pinyin4j.format.HanyuPinyinOutputFormat;
+import net.sourceforge.pinyin4j.format.HanyuPinyinToneType;
+import net.sourceforge.pinyin4j.format.exception.BadHanyuPinyinOutputFormatCombination;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link PinyinTable} against pinyin4j. {@link #benchmarkInitials} prints how
+ * long both take to produce initials for a corpus of library titles; it only
+ * measures, so it is run by hand rather than with the unit tests.
+ */
+public class PinyinTableBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 200;
+
+    private static final String[] TITLES = {
+            "基于深度学习的中文文本分类研究",
+            "面向大规模知识图谱的实体对齐方法",
+            "中国近代史纲要",
+            "明清时期江南地区的市镇经济",
+            "The Art of Computer Programming",
+            "卷积神经网络在医学图像分割中的应用",
+            "Attention Is All You Need",
+            "红楼梦 人物关系 研究",
+            "量子计算导论 第2版",
+            "区块链技术在供应链金融中的应用研究",
+            "银行行长的行为分析",
+            "Designing Data-Intensive Applications",
+            "自然语言处理综论",
+            "长江流域水资源管理的重庆实践",
+            "Deep Learning 深度学习",
+            "乐府诗集校注",
+    };
+
+    @Test
+    public void initialsMatchPinyin4j() {
+        for (String title : TITLES) {
+            assertEquals(title, legacyFirstSpell(title), PinyinUtils.getFirstSpell(title));
+        }
+    }
+
+    @Test
+    public void nonCjkCharactersPassThrough() {
+        assertEquals("Café：zw", PinyinUtils.getFirstSpell("Café：中文"));
+        assertEquals("Café： zhong wen", PinyinUtils.getFullSpell("Café：中文"));
+        assertEquals("", PinyinUtils.getFirstSpell(""));
+        assertNull(PinyinUtils.getFirstSpell(null));
+    }
+
+    @Test
+    public void polyphonesKeepEveryReading() {
+        PinyinTable table = PinyinTable.get();
+        assertEquals("xing", table.syllable('行'));
+        assertTrue(Arrays.asList(table.readings('行')).contains("hang"));
+        assertEquals(0, table.readings('a').length);
+    }
+
+    @Ignore("Timing only, run by hand")
+    @Test
+    public void benchmarkInitials() {
+        PinyinTable.get();
+
+        long legacy = measure(() -> {
+            for (String title : TITLES) legacyFirstSpell(title);
+        });
+        long table = measure(() -> {
+            for (String title : TITLES) PinyinUtils.getFirstSpell(title);
+        });
+
+        long titles = (long) MEASURED_ROUNDS * TITLES.length;
+        System.out.println(String.format("pinyin4j per character: %d ns/title", legacy / titles));
+        System.out.println(String.format("PinyinTable:            %d ns/title", table / titles));
+    }
+
+    private static long measure(Runnable work) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) work.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) work.run();
+        return System.nanoTime() - start;
+    }
+
+    /** The implementation PinyinUtils used before the lookup table. */
+    private static String legacyFirstSpell(String chinese) {
+        StringBuilder pybf = new StringBuilder();
+        HanyuPinyinOutputFormat defaultFormat = new HanyuPinyinOutputFormat();
+        defaultFormat.setCaseType(HanyuPinyinCaseType.LOWERCASE);
+        defaultFormat.setToneType(HanyuPinyinToneType.WITHOUT_TONE);
+        for (char c : chinese.toCharArray()) {
+            if (c > 128) {
+                try {
+                    String[] pinyinArray = PinyinHelper.toHanyuPinyinStringArray(c, defaultFormat);
+                    if (pinyinArray != null && pinyinArray.length > 0) {
+                        pybf.append(pinyinArray[0].charAt(0));
+                    }
+                } catch (BadHanyuPinyinOutputFormatCombination e) {
+                    e.printStackTrace();
+                }
+            } else {
+                pybf.append(c);
+            }
+        }
+        return pybf.toString();
+    }
+}